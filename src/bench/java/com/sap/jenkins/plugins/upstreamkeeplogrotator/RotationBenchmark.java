@@ -0,0 +1,230 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Cause;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.Result;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast {@link LogRotator} decides what to do with the builds of a job, and how much it allocates doing so.
+ *
+ * The benchmarks run against {@link SyntheticJob}s, so they cover the traversal and the keep predicates
+ * but not the deletions themselves. Loading a build record is free here, so the number of loads is
+ * reported separately. Run them with
+ * {@code mvn -Pbenchmark test-compile exec:exec}; {@link #main(String[])} then prints the throughput
+ * and the allocation per build examined.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RotationBenchmark {
+
+    /**
+     * Builds that are younger than the age based retention, as a share of all builds.
+     */
+    private static final double RETAINED_BY_AGE = 0.1;
+
+    /**
+     * Number of distinct upstream builds the upstream causes point to.
+     */
+    private static final int UPSTREAM_BUILDS = 1000;
+
+    @State(Scope.Benchmark)
+    public static class History {
+
+        @Param({"100", "1000", "10000", "100000"})
+        public int builds;
+
+        /**
+         * Share of the builds that have an upstream cause; half of the upstream builds still exist.
+         */
+        @Param({"0", "0.5", "1"})
+        public double upstreamDensity;
+
+        /**
+         * Share of the builds that are marked as keepers.
+         */
+        @Param({"0", "0.1"})
+        public double keepLogRatio;
+
+        SyntheticJob job;
+
+        LogRotator byCount;
+        LogRotator byAge;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            File root = File.createTempFile("rotation", "bench");
+            root.delete();
+            root.mkdirs();
+            SyntheticJob.Folder folder = new SyntheticJob.Folder(root);
+            SyntheticJob upstream = new SyntheticJob(folder, "upstream");
+            job = new SyntheticJob(folder, "downstream");
+
+            Random random = new Random(42);
+            Cause.UpstreamCause[] causes = new Cause.UpstreamCause[UPSTREAM_BUILDS];
+            for ( int i=0; i<UPSTREAM_BUILDS; i++ ) {
+                int n = i + 1;
+                causes[i] = new Cause.UpstreamCause(upstream.add(n, 0, false, Collections.<Cause>emptyList()));
+                UpstreamBuildCache.record(upstream.getFullName(), n, n % 2 == 0);
+            }
+
+            // one build an hour, the newest ones last
+            long now = System.currentTimeMillis();
+            SyntheticJob.SyntheticRun last = null;
+            for ( int n=1; n<=builds; n++ ) {
+                List<Cause> c = random.nextDouble() < upstreamDensity
+                        ? Collections.<Cause>singletonList(causes[random.nextInt(UPSTREAM_BUILDS)])
+                        : Collections.<Cause>emptyList();
+                last = job.add(n, now - TimeUnit.HOURS.toMillis(builds - n), random.nextDouble() < keepLogRatio, c);
+            }
+            job.setLastSuccessful(last, last);
+
+            int retainedHours = (int) Math.max(1, builds * RETAINED_BY_AGE);
+            int retainedBuilds = (int) Math.max(1, builds * RETAINED_BY_AGE);
+            byCount = new LogRotator(-1, -1, retainedBuilds, -1, -1, retainedBuilds / 2, true, true);
+            byAge = new LogRotator(-1, retainedHours, -1, -1, retainedHours / 2, -1, true, true);
+        }
+    }
+
+    /**
+     * Builds looked at, and build records loaded from the synthetic job, reported as rates next to the plans per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Examined {
+        public long builds;
+        public long loads;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            builds = 0;
+            loads = 0;
+        }
+
+        void add(RotationPlan plan, SyntheticJob job) {
+            builds += plan.examined;
+            loads += job.takeLoads();
+        }
+    }
+
+    @Benchmark
+    public RotationPlan planByCount(History h, Examined e) {
+        RotationPlan plan = new RotationPlanner(h.byCount, h.job).plan();
+        e.add(plan, h.job);
+        return plan;
+    }
+
+    /**
+     * Without a cursor from a previous pass, so every build older than the retention is visited.
+     */
+    @Benchmark
+    public RotationPlan planByAge(History h, Examined e) {
+        RotationPlan plan = new RotationPlanner(h.byAge, h.job).plan();
+        e.add(plan, h.job);
+        return plan;
+    }
+
+    /**
+     * Re-checks the builds held by a single upstream build, as {@link UpstreamHoldIndex} does after it is deleted.
+     */
+    @Benchmark
+    public RotationPlan recheck(History h, Examined e) {
+        Collection<Integer> numbers = Collections.singleton(Math.max(1, h.builds / 2));
+        RotationPlan plan = new RotationPlanner(h.byCount, h.job).plan(numbers);
+        e.add(plan, h.job);
+        return plan;
+    }
+
+    @Benchmark
+    public void traverse(History h, Examined e, Blackhole bh) {
+        for ( Iterator<?> it = new DescendingRunIterator(h.job); it.hasNext(); ) {
+            bh.consume(it.next());
+        }
+        long loads = h.job.takeLoads();
+        e.builds += loads;
+        e.loads += loads;
+    }
+
+    /**
+     * Runs the benchmarks matching the optional argument, then prints the throughput and
+     * the allocation normalized to the builds examined.
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(RotationBenchmark.class.getSimpleName() + (args.length > 0 ? "." + args[0] : ""))
+                .addProfiler(GCProfiler.class)
+                .build();
+        Collection<RunResult> results = new Runner(options).run();
+
+        System.out.println();
+        System.out.printf("%-12s %8s %9s %8s %14s %14s %14s %14s%n",
+                "Benchmark", "builds", "upstream", "keepLog", "plans/s", "builds/s", "loads/s", "bytes/build");
+        for ( RunResult r : results ) {
+            Result examined = r.getSecondaryResults().get("builds");
+            Result loads = r.getSecondaryResults().get("loads");
+            Result alloc = r.getSecondaryResults().get("·gc.alloc.rate.norm");
+            double perSecond = r.getPrimaryResult().getScore();
+            double buildsPerSecond = examined != null ? examined.getScore() : Double.NaN;
+            // the allocation is normalized per plan; scale it by the plans per build examined
+            double bytesPerBuild = alloc != null && buildsPerSecond > 0 ? alloc.getScore() * perSecond / buildsPerSecond : Double.NaN;
+            String label = r.getParams().getBenchmark();
+            System.out.printf("%-12s %8s %9s %8s %14.1f %14.1f %14.1f %14.1f%n",
+                    label.substring(label.lastIndexOf('.') + 1),
+                    r.getParams().getParam("builds"),
+                    r.getParams().getParam("upstreamDensity"),
+                    r.getParams().getParam("keepLogRatio"),
+                    perSecond, buildsPerSecond, loads != null ? loads.getScore() : Double.NaN, bytesPerBuild);
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Cause;
+import hudson.model.Item;
+import hudson.model.ItemGroup;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A job whose builds live in memory only, for benchmarking {@link LogRotator} without a Jenkins instance.
+ * With a Jenkins instance and build directories on disk, its builds can also really be deleted, see {@code RotationScaleTest}.
+ *
+ * Counts how many builds were handed out, which on a real controller is the number of build records
+ * that may have to be loaded from disk.
+ */
+final class SyntheticJob extends Job<SyntheticJob,SyntheticJob.SyntheticRun> {
+
+    /**
+     * Newest first, like the build map of a real job. Not part of the job configuration, should it be saved.
+     */
+    private final transient TreeMap<Integer,SyntheticRun> runs = new TreeMap<Integer,SyntheticRun>(Collections.reverseOrder());
+
+    private transient SyntheticRun lastSuccessful;
+    private transient SyntheticRun lastStable;
+
+    private transient long loads;
+
+    SyntheticJob(Folder parent, String name) {
+        super(parent, name);
+    }
+
+    SyntheticRun add(int number, long timestamp, boolean keepLog, List<Cause> causes) {
+        SyntheticRun r = new SyntheticRun(this, number, timestamp, keepLog, causes);
+        runs.put(number, r);
+        return r;
+    }
+
+    void setLastSuccessful(SyntheticRun lastSuccessful, SyntheticRun lastStable) {
+        this.lastSuccessful = lastSuccessful;
+        this.lastStable = lastStable;
+    }
+
+    /**
+     * Returns and resets the number of builds handed out so far.
+     */
+    long takeLoads() {
+        long l = loads;
+        loads = 0;
+        return l;
+    }
+
+    private SyntheticRun load(SyntheticRun r) {
+        if ( r != null ) loads++;
+        return r;
+    }
+
+    @Override
+    protected SortedMap<Integer,? extends SyntheticRun> _getRuns() {
+        return runs;
+    }
+
+    @Override
+    public SyntheticRun getBuildByNumber(int n) {
+        return load(runs.get(n));
+    }
+
+    @Override
+    public SyntheticRun getNearestOldBuild(int n) {
+        SortedMap<Integer,SyntheticRun> m = runs.tailMap(n);
+        return m.isEmpty() ? null : load(m.get(m.firstKey()));
+    }
+
+    @Override
+    public SyntheticRun getNearestBuild(int n) {
+        SortedMap<Integer,SyntheticRun> m = runs.headMap(n - 1);
+        return m.isEmpty() ? null : load(m.get(m.lastKey()));
+    }
+
+    @Override
+    public SyntheticRun getLastSuccessfulBuild() {
+        return lastSuccessful;
+    }
+
+    @Override
+    public SyntheticRun getLastStableBuild() {
+        return lastStable;
+    }
+
+    @Override
+    protected void removeRun(SyntheticRun run) {
+        runs.remove(run.getNumber());
+    }
+
+    @Override
+    public boolean isBuildable() {
+        return false;
+    }
+
+    static final class SyntheticRun extends Run<SyntheticJob,SyntheticRun> {
+        private final boolean keepLog;
+        private final List<Cause> causes;
+
+        SyntheticRun(SyntheticJob job, int number, long timestamp, boolean keepLog, List<Cause> causes) {
+            super(job, timestamp);
+            this.number = number;
+            this.keepLog = keepLog;
+            this.causes = causes;
+        }
+
+        @Override
+        public String getWhyKeepLog() {
+            return keepLog ? "synthetic keeper" : null;
+        }
+
+        @Override
+        public List<Cause> getCauses() {
+            return causes;
+        }
+
+        @Override
+        public boolean isBuilding() {
+            return false;
+        }
+
+        @Override
+        public SyntheticRun getNextBuild() {
+            return getParent().getNearestBuild(number + 1);
+        }
+
+        @Override
+        public SyntheticRun getPreviousBuild() {
+            return getParent().getNearestOldBuild(number - 1);
+        }
+    }
+
+    /**
+     * The item group holding the synthetic jobs, so that they have full names and a place on disk for their cursors.
+     */
+    static final class Folder implements ItemGroup<Item> {
+        private final File rootDir;
+
+        Folder(File rootDir) {
+            this.rootDir = rootDir;
+        }
+
+        public String getFullName() {
+            return "";
+        }
+
+        public String getFullDisplayName() {
+            return "";
+        }
+
+        public Collection<Item> getItems() {
+            return Collections.emptySet();
+        }
+
+        public String getUrl() {
+            return "";
+        }
+
+        public String getUrlChildPrefix() {
+            return "job";
+        }
+
+        public Item getItem(String name) {
+            return null;
+        }
+
+        public File getRootDirFor(Item child) {
+            return new File(rootDir, child.getName());
+        }
+
+        public void onRenamed(Item item, String oldName, String newName) throws IOException {
+        }
+
+        public void onDeleted(Item item) throws IOException {
+        }
+
+        public File getRootDir() {
+            return rootDir;
+        }
+
+        public void save() throws IOException {
+        }
+
+        public String getDisplayName() {
+            return "";
+        }
+    }
+}
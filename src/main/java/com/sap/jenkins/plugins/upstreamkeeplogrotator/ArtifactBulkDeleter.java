@@ -0,0 +1,74 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import hudson.model.Run;
+import jenkins.model.ArtifactManager;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Deletes the artifacts of many builds at once, for an {@link ArtifactManager} that keeps them elsewhere, e.g. in an object store.
+ *
+ * {@link Run#deleteArtifacts()} goes to the backend once per build. Instead, {@link LogRotator} collects the builds
+ * a pass purges of their artifacts, and hands those a deleter {@link #handles(Run) handles} to it in batches of
+ * {@link RotationConfiguration#getBulkDeleteBatchSize()}, several at the same time up to
+ * {@link RotationConfiguration#getBulkDeleteConcurrency()}. The bookkeeping is done by {@link LogRotator}.
+ *
+ * @see FileArtifactBulkDeleter
+ */
+public abstract class ArtifactBulkDeleter implements ExtensionPoint {
+
+    /**
+     * Whether this deleter takes care of the artifacts of the given build.
+     */
+    public abstract boolean handles(Run<?,?> r);
+
+    /**
+     * Deletes the artifacts of all the given builds, ideally with a single request to the backend.
+     * May be called for several batches at the same time.
+     *
+     * @throws IOException if any of them could not be deleted; the {@link RotationJournal} then has them purged
+     *     one at a time when the job is rotated next
+     */
+    public abstract void deleteArtifacts(List<Run<?,?>> batch) throws IOException, InterruptedException;
+
+    public static ExtensionList<ArtifactBulkDeleter> all() {
+        return Jenkins.getInstance().getExtensionList(ArtifactBulkDeleter.class);
+    }
+
+    /**
+     * Finds the deleter for the artifacts of the given build, or null if they are to be deleted one build at a time.
+     */
+    static ArtifactBulkDeleter of(Run<?,?> r) {
+        for ( ArtifactBulkDeleter d : all() ) {
+            if ( d.handles(r) ) return d;
+        }
+        return null;
+    }
+}
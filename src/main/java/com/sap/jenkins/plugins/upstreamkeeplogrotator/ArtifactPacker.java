@@ -0,0 +1,285 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Item;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import jenkins.model.Jenkins;
+import jenkins.model.StandardArtifactManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.util.logging.Logger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Packs the artifacts of older builds into a single zip archive, for {@link LogRotator#getArtifactPackNumToKeep()}
+ * and {@link LogRotator#getArtifactPackRetention()}.
+ *
+ * The archive goes into the {@link RotationConfiguration#getColdArtifactDir() cold artifact directory} if there is
+ * one, or into the build directory otherwise. Once it is complete, {@link PackedArtifacts} becomes the artifact manager
+ * of the build and is saved in its build record, and only then is the artifacts directory deleted, so the artifacts
+ * are always in one place or the other. {@link PackedArtifacts} serves the files from the archive wherever artifacts
+ * are shown; removing the artifacts later on is a single unlink.
+ *
+ * Only artifacts kept by the {@link StandardArtifactManager} can be packed. Jenkins has no way to change the artifact
+ * manager of a build that has one, so it is set by reflection; if that fails, nothing is packed.
+ */
+final class ArtifactPacker {
+
+    static final String IN_PLACE = "archive.zip";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * {@code Run.artifactManager}, or null if it cannot be set.
+     */
+    private static final Field ARTIFACT_MANAGER = artifactManagerField();
+
+    private static Field artifactManagerField() {
+        try {
+            Field f = Run.class.getDeclaredField("artifactManager");
+            f.setAccessible(true);
+            return f;
+        } catch (Exception e) {
+            LOGGER.log(WARNING, "Artifacts cannot be packed with this version of Jenkins", e);
+            return null;
+        }
+    }
+
+    private ArtifactPacker() {}
+
+    /**
+     * Whether the build has artifacts in its artifacts directory that are not packed yet.
+     */
+    static boolean canPack(Run<?,?> r) {
+        return ARTIFACT_MANAGER != null && r.getArtifactManager() instanceof StandardArtifactManager && r.getArtifactsDir().isDirectory();
+    }
+
+    /**
+     * The recorded size of the artifacts the build keeps in its artifacts directory, or 0 if they cannot be packed.
+     */
+    static long unpackedSize(Run<?,?> r) {
+        return canPack(r) ? RotationStats.sizeOf(r, true) : 0;
+    }
+
+    /**
+     * Packs the artifacts of the build, unless it is still running, they are packed already, or there are none.
+     *
+     * @return the number of bytes freed in the build directory, or -1 if nothing was packed
+     */
+    static long pack(Run<?,?> r) throws IOException {
+        if ( r.isBuilding() || !canPack(r) ) return -1;
+        File dir = r.getArtifactsDir();
+
+        File cold = coldDir();
+        File archive = cold != null ? new File(new File(cold, r.getParent().getFullName()), r.getNumber() + ".zip")
+                : new File(r.getRootDir(), IN_PLACE);
+        File tmp = new File(archive.getPath() + ".tmp");
+        File parent = archive.getParentFile();
+        if ( !parent.isDirectory() && !parent.mkdirs() ) throw new IOException("Failed to create " + parent);
+        long size = BuildSize.sizeOf(dir);
+
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(tmp));
+        try {
+            byte[] buf = new byte[BUFFER_SIZE];
+            add(out, dir, "", buf);
+        } catch (IOException e) {
+            out.close();
+            tmp.delete();
+            throw e;
+        }
+        out.close();
+        if ( archive.exists() && !archive.delete() ) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + archive);
+        }
+        if ( !tmp.renameTo(archive) ) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp + " to " + archive);
+        }
+
+        // record where the artifacts went before they are gone from where they were
+        PackedArtifacts packed = new PackedArtifacts(r, cold != null ? archive.getAbsolutePath() : null, size);
+        synchronized (r) {
+            if ( !(r.getArtifactManager() instanceof StandardArtifactManager) ) {
+                archive.delete();
+                return -1;
+            }
+            try {
+                ARTIFACT_MANAGER.set(r, packed);
+            } catch (IllegalAccessException e) {
+                archive.delete();
+                throw new IOException("Failed to set the artifact manager of " + r, e);
+            }
+        }
+        try {
+            BuildSize.artifactsPacked(r, cold != null ? 0 : archive.length());
+        } catch (IOException e) {
+            // the build record still says the artifacts are where they were
+            try {
+                ARTIFACT_MANAGER.set(r, null);
+            } catch (IllegalAccessException x) {
+                LOGGER.log(WARNING, "Failed to reset the artifact manager of " + r, x);
+            }
+            archive.delete();
+            throw e;
+        }
+        Util.deleteRecursive(dir);
+        long saved = size - (cold != null ? 0 : archive.length());
+        LOGGER.log(FINE, "Packed {0} bytes of artifacts of {1} into {2} of {3} bytes", new Object[] {size, r, archive, archive.length()});
+        return saved;
+    }
+
+    private static void add(ZipOutputStream out, File dir, String prefix, byte[] buf) throws IOException {
+        File[] children = dir.listFiles();
+        if ( children == null ) throw new IOException("Failed to list " + dir);
+        for ( File c : children ) {
+            String name = prefix + c.getName();
+            if ( c.isDirectory() ) {
+                ZipEntry e = new ZipEntry(name + "/");
+                e.setTime(c.lastModified());
+                out.putNextEntry(e);
+                out.closeEntry();
+                add(out, c, name + "/", buf);
+                continue;
+            }
+            ZipEntry e = new ZipEntry(name);
+            e.setTime(c.lastModified());
+            out.putNextEntry(e);
+            InputStream in = new FileInputStream(c);
+            try {
+                int n;
+                while ( (n = in.read(buf)) != -1 ) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+            out.closeEntry();
+        }
+    }
+
+    /**
+     * Deletes the archive of the packed artifacts of the build, if there is one.
+     *
+     * @return the number of bytes freed
+     */
+    static long deletePacked(Run<?,?> r) throws IOException {
+        PackedArtifacts p = PackedArtifacts.of(r);
+        if ( p == null ) return 0;
+        long size = p.getPackedSize();
+        if ( !p.delete() ) return 0;
+        BuildSize.packedDeleted(r, p.isInPlace() ? size : 0);
+        LOGGER.log(FINE, "Deleted the packed artifacts of {0}", r);
+        return size;
+    }
+
+    private static File coldDir() {
+        RotationConfiguration c = RotationConfiguration.get();
+        String dir = c != null ? c.getColdArtifactDir() : null;
+        return dir != null ? new File(dir) : null;
+    }
+
+    /**
+     * Archives in the cold artifact directory are not removed along with the build directory.
+     */
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            PackedArtifacts p = PackedArtifacts.of(r);
+            if ( p == null || p.isInPlace() ) return;
+            try {
+                p.delete();
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to delete the packed artifacts of " + r, e);
+            }
+        }
+    }
+
+    /**
+     * Deleting a job, or a folder, does not fire {@link RunListener#onDeleted(Run)} for its builds.
+     * Renaming or moving one leaves its archives in the cold artifact directory under the old name, so they follow.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            File cold = coldDir();
+            if ( cold == null ) return;
+            File dir = new File(cold, item.getFullName());
+            if ( !dir.exists() ) return;
+            try {
+                Util.deleteRecursive(dir);
+                LOGGER.log(FINE, "Deleted the packed artifacts of {0}", item);
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to delete the packed artifacts of " + item, e);
+            }
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            File cold = coldDir();
+            if ( cold == null ) return;
+            File from = new File(cold, oldFullName);
+            if ( !from.exists() ) return;
+            File to = new File(cold, newFullName);
+            File parent = to.getParentFile();
+            // if the archives stay where they are, the builds still know where to find them
+            if ( to.exists() || !parent.isDirectory() && !parent.mkdirs() || !from.renameTo(to) ) {
+                LOGGER.log(WARNING, "Failed to move the packed artifacts of {0} from {1} to {2}", new Object[] {item, from, to});
+                return;
+            }
+            LOGGER.log(FINE, "Moved the packed artifacts of {0} from {1} to {2}", new Object[] {item, from, to});
+            for ( Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class) ) {
+                String name = job.getFullName();
+                if ( !name.equals(newFullName) && !name.startsWith(newFullName + "/") ) continue;
+                for ( Run<?,?> r : job.getBuilds() ) {
+                    PackedArtifacts p = PackedArtifacts.of(r);
+                    if ( p == null || !p.moved(from, to) ) continue;
+                    try {
+                        r.save();
+                    } catch (IOException e) {
+                        LOGGER.log(WARNING, "Failed to save " + r, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(ArtifactPacker.class.getName());
+}
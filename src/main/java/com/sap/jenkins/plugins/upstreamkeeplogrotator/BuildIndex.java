@@ -0,0 +1,566 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Cause;
+import hudson.model.Fingerprint;
+import hudson.model.Job;
+import hudson.model.Result;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import hudson.tasks.Fingerprinter;
+import jenkins.model.Jenkins;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * What {@link LogRotator} needs to know about the builds of a job, without loading them.
+ *
+ * Kept in memory, and in a compact binary file next to the job configuration that is appended to as
+ * builds start, complete, change their keeper mark and get deleted. The file is rewritten once it holds
+ * more superseded records than live ones. When there is no file yet, it is built by loading every build once.
+ *
+ * Besides the upstream causes, the index holds where the artifacts a build consumed came from, as told by
+ * their fingerprints, so that {@link LogRotator#isUpstreamKeepFingerprints()} need not consult the fingerprint records.
+ */
+final class BuildIndex {
+
+    static final String FILE_NAME = "upstreamkeep-logrotator-index.bin";
+
+    /**
+     * Changed whenever the format of the records changes; the file is then rebuilt.
+     */
+    private static final int MAGIC = 0x554b4934;
+
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * What is known about a single build. Immutable.
+     */
+    static final class Entry {
+        static final BuildKey[] NONE = new BuildKey[0];
+
+        final int number;
+        final long timestamp;
+        /**
+         * {@link Result#ordinal}, or -1 while building.
+         */
+        final int result;
+        final boolean building;
+        final boolean keepLog;
+        /**
+         * The builds of the direct {@link Cause.UpstreamCause}s.
+         */
+        final BuildKey[] upstream;
+        /**
+         * The builds of other jobs that produced the artifacts this build consumed, by their fingerprints,
+         * or null until the build has recorded fingerprints. Resolved once, since that takes loading them.
+         */
+        final BuildKey[] producers;
+        /**
+         * As recorded by {@link BuildSize}, or -1 if unknown.
+         */
+        final long size;
+        final long artifactsSize;
+        /**
+         * Whether the artifacts have been packed, see {@link BuildSize#isPacked}.
+         */
+        final boolean packed;
+
+        Entry(int number, long timestamp, int result, boolean building, boolean keepLog, BuildKey[] upstream, BuildKey[] producers, long size, long artifactsSize, boolean packed) {
+            this.number = number;
+            this.timestamp = timestamp;
+            this.result = result;
+            this.building = building;
+            this.keepLog = keepLog;
+            this.upstream = upstream;
+            this.producers = producers;
+            this.size = size;
+            this.artifactsSize = artifactsSize;
+            this.packed = packed;
+        }
+
+        /**
+         * @param previous the entry of the build so far, whose producers are kept if resolved already, or null
+         */
+        static Entry of(Run<?,?> r, Entry previous) {
+            List<BuildKey> upstream = new ArrayList<BuildKey>();
+            for ( Cause c : r.getCauses() ) {
+                if ( c instanceof Cause.UpstreamCause ) upstream.add(BuildKey.of((Cause.UpstreamCause)c));
+            }
+            Result result = r.getResult();
+            BuildSize size = BuildSize.of(r);
+            return new Entry(r.getNumber(), r.getTimeInMillis(), result != null ? result.ordinal : -1, r.isBuilding(), r.isKeepLog(),
+                    upstream.toArray(new BuildKey[upstream.size()]),
+                    previous != null && previous.producers != null ? previous.producers : producers(r),
+                    size != null ? size.getTotal() : -1, size != null ? size.getArtifacts() : -1, size != null && size.isPacked());
+        }
+
+        /**
+         * Looks up the fingerprints the build recorded, for where the files came from.
+         * Fingerprints of files the job produced itself are skipped.
+         *
+         * @return null if the build has not recorded fingerprints (yet)
+         */
+        private static BuildKey[] producers(Run<?,?> r) {
+            Fingerprinter.FingerprintAction a = r.getAction(Fingerprinter.FingerprintAction.class);
+            if ( a == null ) return null;
+            Set<BuildKey> producers = new LinkedHashSet<BuildKey>();
+            Jenkins j = Jenkins.getInstance();
+            for ( String md5 : a.getRecords().values() ) {
+                try {
+                    Fingerprint f = j.getFingerprintMap().get(md5);
+                    Fingerprint.BuildPtr original = f != null ? f.getOriginal() : null;
+                    if ( original != null && !original.getName().equals(r.getParent().getFullName()) ) {
+                        producers.add(new BuildKey(original.getName(), original.getNumber()));
+                    }
+                } catch (IOException e) {
+                    LOGGER.log(FINE, "Failed to load fingerprint " + md5 + " of " + r, e);
+                }
+            }
+            return producers.toArray(new BuildKey[producers.size()]);
+        }
+
+        private void write(DataOutputStream out) throws IOException {
+            out.writeByte(PUT);
+            out.writeInt(number);
+            out.writeLong(timestamp);
+            out.writeByte(result);
+            out.writeBoolean(building);
+            out.writeBoolean(keepLog);
+            writeKeys(out, upstream);
+            out.writeBoolean(producers != null);
+            if ( producers != null ) writeKeys(out, producers);
+            out.writeLong(size);
+            out.writeLong(artifactsSize);
+            out.writeBoolean(packed);
+        }
+
+        private static Entry read(DataInputStream in, Map<String,String> names) throws IOException {
+            int number = in.readInt();
+            long timestamp = in.readLong();
+            int result = in.readByte();
+            boolean building = in.readBoolean();
+            boolean keepLog = in.readBoolean();
+            BuildKey[] upstream = readKeys(in, names);
+            BuildKey[] producers = in.readBoolean() ? readKeys(in, names) : null;
+            return new Entry(number, timestamp, result, building, keepLog, upstream, producers, in.readLong(), in.readLong(), in.readBoolean());
+        }
+
+        private static void writeKeys(DataOutputStream out, BuildKey[] keys) throws IOException {
+            out.writeShort(keys.length);
+            for ( BuildKey k : keys ) {
+                out.writeUTF(k.project);
+                out.writeInt(k.number);
+            }
+        }
+
+        private static BuildKey[] readKeys(DataInputStream in, Map<String,String> names) throws IOException {
+            int length = in.readUnsignedShort();
+            if ( length == 0 ) return NONE;
+            BuildKey[] keys = new BuildKey[length];
+            for ( int i=0; i<length; i++ ) {
+                String project = in.readUTF();
+                // most builds share a few upstream jobs
+                String shared = names.get(project);
+                if ( shared == null ) names.put(project, shared = project);
+                keys[i] = new BuildKey(shared, in.readInt());
+            }
+            return keys;
+        }
+    }
+
+    private final File file;
+
+    /**
+     * Newest first.
+     */
+    private final TreeMap<Integer,Entry> entries = new TreeMap<Integer,Entry>(Collections.reverseOrder());
+
+    /**
+     * Records in the file that have been superseded.
+     */
+    private int garbage;
+
+    private BuildIndex(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Guarded by itself; only held to look up or publish an index, never to load or build one.
+     */
+    private static final Map<Job<?,?>,BuildIndex> indexes = new WeakHashMap<Job<?,?>,BuildIndex>();
+
+    /**
+     * Held while the index of a job is loaded or built, so that other jobs can go on meanwhile.
+     */
+    private static final Map<Job<?,?>,Object> loading = new WeakHashMap<Job<?,?>,Object>();
+
+    /**
+     * Gets the index of the given job, loading or building it if necessary.
+     */
+    static BuildIndex of(Job<?,?> job) {
+        BuildIndex i = cached(job);
+        if ( i != null ) return i;
+        Object lock;
+        synchronized (indexes) {
+            lock = loading.get(job);
+            if ( lock == null ) loading.put(job, lock = new Object());
+        }
+        synchronized (lock) {
+            i = cached(job);
+            if ( i == null ) {
+                i = load(job, true);
+                synchronized (indexes) {
+                    indexes.put(job, i);
+                }
+            }
+            return i;
+        }
+    }
+
+    /**
+     * Gets the index of the given job like {@link #of(Job)}, but neither writes nor keeps one it has to load or build.
+     */
+    static BuildIndex peek(Job<?,?> job) {
+        BuildIndex i = cached(job);
+        return i != null ? i : load(job, false);
+    }
+
+    private static BuildIndex cached(Job<?,?> job) {
+        synchronized (indexes) {
+            return indexes.get(job);
+        }
+    }
+
+    /**
+     * Gets the index of the given job if it is in memory or on disk, without building it.
+     */
+    static BuildIndex ifExists(Job<?,?> job) {
+        BuildIndex i = cached(job);
+        if ( i == null && new File(job.getRootDir(), FILE_NAME).exists() ) i = of(job);
+        return i;
+    }
+
+    /**
+     * Forgets the index of the given job, e.g. because builds are no longer recorded in it.
+     */
+    static void drop(Job<?,?> job) {
+        BuildIndex i;
+        synchronized (indexes) {
+            i = indexes.remove(job);
+        }
+        File file = i != null ? i.file : new File(job.getRootDir(), FILE_NAME);
+        if ( i != null ) {
+            synchronized (i) {
+                i.entries.clear();
+                file.delete();
+            }
+        } else if ( file.exists() ) {
+            file.delete();
+        }
+        LOGGER.log(FINE, "Dropped the index of {0}", job);
+    }
+
+    private static BuildIndex load(Job<?,?> job, boolean persist) {
+        BuildIndex i = new BuildIndex(new File(job.getRootDir(), FILE_NAME));
+        if ( i.file.exists() ) {
+            try {
+                i.read();
+                // builds may have been made without the index, e.g. while the job used another discarder
+                Run<?,?> last = job.getLastCompletedBuild();
+                Entry newest = i.newest();
+                if ( last == null || newest != null && newest.number >= last.getNumber() ) return i;
+                LOGGER.log(INFO, "{0} misses builds up to {1}, rebuilding it", new Object[] {i.file, last});
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to load " + i.file + ", rebuilding it", e);
+            }
+            i.entries.clear();
+            i.garbage = 0;
+        }
+        LOGGER.log(FINE, "Building the index of {0}", job);
+        for ( Iterator<Run<?,?>> it = new DescendingRunIterator(job); it.hasNext(); ) {
+            Entry e = Entry.of(it.next(), null);
+            i.entries.put(e.number, e);
+        }
+        if ( !persist ) return i;
+        try {
+            i.compact();
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to write " + i.file, e);
+        }
+        return i;
+    }
+
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if ( in.readInt() != MAGIC ) throw new IOException("Not an index file");
+            Map<String,String> names = new HashMap<String,String>();
+            while ( true ) {
+                int type = in.read();
+                if ( type == -1 ) break;
+                try {
+                    if ( type == PUT ) {
+                        Entry e = Entry.read(in, names);
+                        if ( entries.put(e.number, e) != null ) garbage++;
+                    } else if ( type == REMOVE ) {
+                        if ( entries.remove(in.readInt()) != null ) garbage++;
+                        garbage++;
+                    } else {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                } catch (EOFException e) {
+                    // the controller stopped while appending; the rest is still good
+                    LOGGER.log(FINE, "Ignoring a truncated record at the end of {0}", file);
+                    garbage++;
+                    break;
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Looks up a build, or returns null if it is not known.
+     */
+    synchronized Entry get(int number) {
+        return entries.get(number);
+    }
+
+    /**
+     * The newest known build, or null.
+     */
+    synchronized Entry newest() {
+        return entries.isEmpty() ? null : entries.firstEntry().getValue();
+    }
+
+    /**
+     * The newest known build older than the given build number, or null.
+     */
+    synchronized Entry older(int number) {
+        Map.Entry<Integer,Entry> e = entries.higherEntry(number);
+        return e != null ? e.getValue() : null;
+    }
+
+    /**
+     * The oldest known build newer than the given build number, or null.
+     */
+    synchronized Entry newer(int number) {
+        Map.Entry<Integer,Entry> e = entries.lowerEntry(number);
+        return e != null ? e.getValue() : null;
+    }
+
+    /**
+     * The newest known build started before the given time, or null.
+     *
+     * Build times are assumed to grow with the build numbers, so this is a binary search over
+     * the range of build numbers, skipping the gaps left by deleted builds.
+     */
+    synchronized Entry newestStartedBefore(long time) {
+        if ( entries.isEmpty() ) return null;
+        int low = entries.lastKey();
+        int high = entries.firstKey();
+        Entry found = null;
+        while ( low <= high ) {
+            int mid = low + (high - low) / 2;
+            // the newest build at or below mid, as the map is in reverse order
+            Map.Entry<Integer,Entry> e = entries.ceilingEntry(mid);
+            if ( e == null || e.getKey() < low ) {
+                low = mid + 1;
+            } else if ( e.getValue().timestamp < time ) {
+                found = e.getValue();
+                low = mid + 1;
+            } else {
+                high = e.getKey() - 1;
+            }
+        }
+        return found;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized void put(Run<?,?> r) throws IOException {
+        Entry e = Entry.of(r, entries.get(r.getNumber()));
+        if ( entries.put(e.number, e) != null ) garbage++;
+        DataOutputStream out = append();
+        try {
+            e.write(out);
+        } finally {
+            out.close();
+        }
+        compactIfNeeded();
+    }
+
+    synchronized void remove(int number) throws IOException {
+        if ( entries.remove(number) == null ) return;
+        garbage += 2;
+        DataOutputStream out = append();
+        try {
+            out.writeByte(REMOVE);
+            out.writeInt(number);
+        } finally {
+            out.close();
+        }
+        compactIfNeeded();
+    }
+
+    private DataOutputStream append() throws IOException {
+        if ( !file.exists() ) {
+            compact();
+        }
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if ( garbage > entries.size() && garbage > 100 ) compact();
+    }
+
+    /**
+     * Rewrites the file with only the live entries.
+     */
+    private void compact() throws IOException {
+        file.getParentFile().mkdirs();
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+        try {
+            out.writeInt(MAGIC);
+            for ( Entry e : entries.values() ) {
+                e.write(out);
+            }
+        } finally {
+            out.close();
+        }
+        if ( !tmp.renameTo(file) ) {
+            // not atomic on Windows, but the index can always be rebuilt
+            file.delete();
+            if ( !tmp.renameTo(file) ) throw new IOException("Failed to replace " + file);
+        }
+        garbage = 0;
+    }
+
+    private static boolean isIndexed(Run<?,?> r) {
+        return r.getParent().getBuildDiscarder() instanceof LogRotator;
+    }
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onStarted(Run<?,?> r, TaskListener listener) {
+            if ( !isIndexed(r) ) {
+                // the index would miss this build if the job went back to LogRotator
+                if ( cached(r.getParent()) != null || new File(r.getParent().getRootDir(), FILE_NAME).exists() ) drop(r.getParent());
+                return;
+            }
+            try {
+                of(r.getParent()).put(r);
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to index " + r, e);
+            }
+        }
+
+        @Override
+        public void onCompleted(Run<?,?> r, TaskListener listener) {
+            if ( !isIndexed(r) ) return;
+            try {
+                if ( BuildSize.of(r) == null ) {
+                    BuildSize size = BuildSize.record(r);
+                    r.save();
+                    LOGGER.log(FINER, "{0} takes up {1} bytes, {2} of them artifacts", new Object[] {r, size.getTotal(), size.getArtifacts()});
+                }
+                of(r.getParent()).put(r);
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to index " + r, e);
+            }
+        }
+
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            BuildIndex i = ifExists(r.getParent());
+            try {
+                if ( i != null ) i.remove(r.getNumber());
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to remove " + r + " from the index", e);
+            }
+        }
+    }
+
+    /**
+     * Keeps the keeper mark and the artifacts size up to date.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if ( !(o instanceof Run) ) return;
+            Run<?,?> r = (Run<?,?>) o;
+            if ( r.isBuilding() || !isIndexed(r) ) return;
+            BuildIndex i = ifExists(r.getParent());
+            if ( i == null ) return;
+            Entry e = i.get(r.getNumber());
+            BuildSize size = BuildSize.of(r);
+            // fingerprints may be recorded after the fact, e.g. by other plugins
+            boolean fingerprinted = e != null && e.producers == null && r.getAction(Fingerprinter.FingerprintAction.class) != null;
+            if ( e == null || e.building || e.keepLog != r.isKeepLog() || size != null && (size.getArtifacts() != e.artifactsSize || size.getTotal() != e.size || size.isPacked() != e.packed) || fingerprinted ) {
+                try {
+                    i.put(r);
+                } catch (IOException x) {
+                    LOGGER.log(WARNING, "Failed to index " + r, x);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BuildIndex.class.getName());
+}
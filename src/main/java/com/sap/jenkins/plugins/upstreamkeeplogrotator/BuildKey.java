@@ -0,0 +1,94 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.security.ACL;
+import jenkins.model.Jenkins;
+import org.acegisecurity.context.SecurityContext;
+import org.acegisecurity.context.SecurityContextHolder;
+
+/**
+ * Identifies a build by its job's full name and its number, without holding on to the {@link Run}.
+ */
+final class BuildKey {
+    final String project;
+    final int number;
+
+    BuildKey(String project, int number) {
+        this.project = project;
+        this.number = number;
+    }
+
+    static BuildKey of(Run<?,?> r) {
+        return new BuildKey(r.getParent().getFullName(), r.getNumber());
+    }
+
+    static BuildKey of(Cause.UpstreamCause c) {
+        return new BuildKey(c.getUpstreamProject(), c.getUpstreamBuild());
+    }
+
+    /**
+     * Looks up the job the same way {@link Cause.UpstreamCause#getUpstreamRun()} does,
+     * but as {@link ACL#SYSTEM} so the answer does not depend on who asked.
+     */
+    Job<?,?> resolveJob() {
+        Jenkins j = Jenkins.getInstance();
+        if ( j == null ) return null;
+        SecurityContext orig = ACL.impersonate(ACL.SYSTEM);
+        try {
+            return j.getItemByFullName(project, Job.class);
+        } finally {
+            SecurityContextHolder.setContext(orig);
+        }
+    }
+
+    /**
+     * Looks up the build, or returns null if it (or its job) no longer exists.
+     */
+    Run<?,?> resolve() {
+        Job<?,?> job = resolveJob();
+        return job != null ? job.getBuildByNumber(number) : null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if ( this == o ) return true;
+        if ( !(o instanceof BuildKey) ) return false;
+        BuildKey that = (BuildKey) o;
+        return number == that.number && project.equals(that.project);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * project.hashCode() + number;
+    }
+
+    @Override
+    public String toString() {
+        return project + " #" + number;
+    }
+}
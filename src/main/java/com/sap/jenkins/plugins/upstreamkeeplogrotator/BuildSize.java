@@ -0,0 +1,151 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * The disk space a build takes up, measured once when it completes and stored in its build record.
+ *
+ * Lets {@link LogRotator} enforce disk budgets without walking the build directories on every pass.
+ * Recorded by {@link BuildIndex.RunListenerImpl}, which also copies it into the index.
+ */
+public final class BuildSize extends InvisibleAction {
+
+    /**
+     * Bytes under the build directory, including the artifacts.
+     */
+    private volatile long total;
+
+    /**
+     * Bytes under the artifacts directory, or of the archive of the packed artifacts if kept in the build directory.
+     */
+    private volatile long artifacts;
+
+    /**
+     * Whether the artifacts have been packed by {@link ArtifactPacker}.
+     */
+    private volatile boolean packed;
+
+    BuildSize(long total, long artifacts) {
+        this.total = total;
+        this.artifacts = artifacts;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getArtifacts() {
+        return artifacts;
+    }
+
+    public boolean isPacked() {
+        return packed;
+    }
+
+    /**
+     * Returns the recorded size of the build, or null if it completed before sizes were recorded.
+     */
+    static BuildSize of(Run<?,?> r) {
+        return r.getAction(BuildSize.class);
+    }
+
+    /**
+     * Measures the build and stores the result with it.
+     */
+    static BuildSize record(Run<?,?> r) {
+        BuildSize size = new BuildSize(sizeOf(r.getRootDir()), sizeOf(r.getArtifactsDir()));
+        r.addAction(size);
+        return size;
+    }
+
+    /**
+     * Updates the recorded size after the artifacts of the build have been deleted.
+     */
+    static void artifactsDeleted(Run<?,?> r) throws IOException {
+        BuildSize size = of(r);
+        if ( size == null || size.artifacts == 0 ) return;
+        size.total -= size.artifacts;
+        size.artifacts = 0;
+        r.save();
+    }
+
+    /**
+     * Updates the recorded size after the artifacts of the build have been packed, and saves the build.
+     *
+     * @param inPlace the size of the archive if it was left in the build directory, 0 otherwise
+     */
+    static void artifactsPacked(Run<?,?> r, long inPlace) throws IOException {
+        BuildSize size = of(r);
+        if ( size != null ) {
+            size.total = size.total - size.artifacts + inPlace;
+            // an archive in the build directory still counts toward the artifact budget
+            size.artifacts = inPlace;
+            size.packed = true;
+        }
+        r.save();
+    }
+
+    /**
+     * Updates the recorded size after the archive of packed artifacts has been deleted from the build directory.
+     */
+    static void packedDeleted(Run<?,?> r, long inPlace) throws IOException {
+        BuildSize size = of(r);
+        if ( size != null ) {
+            size.total = Math.max(0, size.total - inPlace);
+            size.artifacts = Math.max(0, size.artifacts - inPlace);
+        }
+        r.save();
+    }
+
+    /**
+     * Updates the recorded size after the log of the build has been compressed, saving the given bytes.
+     */
+    static void logCompressed(Run<?,?> r, long saved) throws IOException {
+        BuildSize size = of(r);
+        if ( size == null || saved <= 0 ) return;
+        size.total = Math.max(size.artifacts, size.total - saved);
+        r.save();
+    }
+
+    /**
+     * Sums up the size of the files under the given directory.
+     */
+    static long sizeOf(File f) {
+        if ( f.isFile() ) return f.length();
+        long size = 0;
+        File[] children = f.listFiles();
+        if ( children != null ) {
+            for ( File c : children ) {
+                size += sizeOf(c);
+            }
+        }
+        return size;
+    }
+}
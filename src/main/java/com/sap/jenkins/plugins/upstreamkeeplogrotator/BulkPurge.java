@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Purges the builds of a rotation pass of their artifacts through the {@link ArtifactBulkDeleter}s, in batches.
+ *
+ * Batches of {@link RotationConfiguration#getBulkDeleteBatchSize()} builds go to the deleters on a shared pool of
+ * {@link RotationConfiguration#getBulkDeleteConcurrency()} threads, which a pass may keep busy at most. The pass waits for
+ * them, whether or not {@link LogRotator#isAsyncDelete()}: the point is to make it short, not to hide it.
+ */
+final class BulkPurge {
+
+    private static final int DEFAULT_BATCH_SIZE = 100;
+
+    private static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(DEFAULT_CONCURRENCY, DEFAULT_CONCURRENCY,
+            60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Log Rotation Extended bulk delete"));
+
+    static {
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    private BulkPurge() {}
+
+    /**
+     * Purges those of the given builds an {@link ArtifactBulkDeleter} handles, and waits until that is done.
+     *
+     * @return the other builds, to be purged one at a time
+     */
+    static List<Run<?,?>> purge(Job<?,?> job, List<Run<?,?>> runs) throws InterruptedException {
+        List<Run<?,?>> rest = new ArrayList<Run<?,?>>();
+        Map<ArtifactBulkDeleter,List<Run<?,?>>> byDeleter = new LinkedHashMap<ArtifactBulkDeleter,List<Run<?,?>>>();
+        for ( Run<?,?> r : runs ) {
+            ArtifactBulkDeleter d = ArtifactBulkDeleter.of(r);
+            if ( d == null ) {
+                rest.add(r);
+                continue;
+            }
+            List<Run<?,?>> handled = byDeleter.get(d);
+            if ( handled == null ) byDeleter.put(d, handled = new ArrayList<Run<?,?>>());
+            handled.add(r);
+        }
+        if ( byDeleter.isEmpty() ) return rest;
+
+        RotationConfiguration config = RotationConfiguration.get();
+        int batchSize = config != null ? config.getBulkDeleteBatchSize() : DEFAULT_BATCH_SIZE;
+        int concurrency = config != null ? config.getBulkDeleteConcurrency() : DEFAULT_CONCURRENCY;
+        resize(concurrency);
+        final Semaphore permits = new Semaphore(concurrency);
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for ( Map.Entry<ArtifactBulkDeleter,List<Run<?,?>>> e : byDeleter.entrySet() ) {
+            final ArtifactBulkDeleter d = e.getKey();
+            List<Run<?,?>> handled = e.getValue();
+            for ( int i=0; i<handled.size(); i+=batchSize ) {
+                final List<Run<?,?>> batch = handled.subList(i, Math.min(i + batchSize, handled.size()));
+                permits.acquire();
+                futures.add(pool.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            purge(d, batch);
+                        } finally {
+                            permits.release();
+                        }
+                    }
+                }));
+            }
+        }
+        for ( Future<?> f : futures ) {
+            try {
+                f.get();
+            } catch (ExecutionException x) {
+                LOGGER.log(WARNING, "Failed to purge builds of " + job + " of their artifacts", x.getCause());
+            }
+        }
+        return rest;
+    }
+
+    /**
+     * Follows changes to the configured concurrency.
+     */
+    private static synchronized void resize(int concurrency) {
+        if ( concurrency > pool.getMaximumPoolSize() ) {
+            pool.setMaximumPoolSize(concurrency);
+            pool.setCorePoolSize(concurrency);
+        } else if ( concurrency < pool.getMaximumPoolSize() ) {
+            pool.setCorePoolSize(concurrency);
+            pool.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    private static void purge(ArtifactBulkDeleter d, List<Run<?,?>> batch) {
+        long[] bytes = new long[batch.size()];
+        try {
+            for ( int i=0; i<bytes.length; i++ ) {
+                bytes[i] = RotationStats.sizeOf(batch.get(i), true);
+                DeletionThrottle.acquire(batch.get(i), bytes[i]);
+            }
+            LOGGER.log(FINER, "Purging {0} builds of their artifacts with {1}", new Object[] {batch.size(), d});
+            d.deleteArtifacts(batch);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to purge " + batch + " of their artifacts", e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        RotationStats.bulkDeleted(batch.get(0));
+        for ( int i=0; i<bytes.length; i++ ) {
+            Run<?,?> r = batch.get(i);
+            try {
+                BuildSize.artifactsDeleted(r);
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to save " + r, e);
+            }
+            RotationStats.purged(r, bytes[i]);
+            RotationJournal.done(r, DeletionQueue.Action.DELETE_ARTIFACTS);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(BulkPurge.class.getName());
+}
@@ -0,0 +1,98 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+/**
+ * A build as seen by the {@link RotationPlanner}: what the {@link BuildIndex} knows about it,
+ * and the build record itself only when that is not enough.
+ */
+final class Candidate {
+
+    private final Job<?,?> job;
+
+    final BuildIndex.Entry entry;
+
+    private Run<?,?> run;
+
+    private boolean loaded;
+
+    /**
+     * The outcome of the keep predicates, once evaluated, see {@link RotationPlanner}.
+     */
+    boolean runVerdict;
+    HoldReason runHold;
+    boolean artifactsVerdict;
+    HoldReason artifactsHold;
+
+    Candidate(Job<?,?> job, BuildIndex.Entry entry) {
+        this.job = job;
+        this.entry = entry;
+    }
+
+    int getNumber() {
+        return entry.number;
+    }
+
+    long getTimeInMillis() {
+        return entry.timestamp;
+    }
+
+    boolean isKeepLog() {
+        return entry.keepLog;
+    }
+
+    boolean isBuilding() {
+        if ( !entry.building ) return false;
+        // the index is not told about builds that were cut short by a restart
+        Run<?,?> r = getRun();
+        return r != null && r.isBuilding();
+    }
+
+    BuildKey[] getUpstream() {
+        return entry.upstream;
+    }
+
+    BuildKey[] getProducers() {
+        return entry.producers != null ? entry.producers : BuildIndex.Entry.NONE;
+    }
+
+    /**
+     * Loads the build, or returns null if it no longer exists.
+     */
+    Run<?,?> getRun() {
+        if ( !loaded ) {
+            run = job.getBuildByNumber(entry.number);
+            loaded = true;
+        }
+        return run;
+    }
+
+    @Override
+    public String toString() {
+        return job.getFullName() + " #" + entry.number;
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Run;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Deletes builds and artifacts in the background on behalf of {@link LogRotator#isAsyncDelete()}, compresses build logs,
+ * and packs artifacts.
+ *
+ * Each job is always served by the same worker, so deletions within a job happen in the order
+ * they were decided. Workers take whatever has queued up, across jobs, in batches. Queues are
+ * bounded: if a worker falls too far behind, the submitting thread waits for room.
+ */
+final class DeletionQueue {
+
+    /**
+     * What to do with a build.
+     */
+    enum Action {
+        DELETE {
+            @Override
+            void perform(Run<?,?> r, boolean trash) throws IOException {
+                long bytes = RotationStats.sizeOf(r, false);
+                DeletionThrottle.acquire(r, bytes);
+                if ( trash ) {
+                    Trash.delete(r);
+                } else {
+                    r.delete();
+                }
+                RotationStats.deleted(r, bytes);
+                RotationJournal.done(r, this);
+            }
+        },
+        DELETE_ARTIFACTS {
+            @Override
+            void perform(Run<?,?> r, boolean trash) throws IOException {
+                long bytes = RotationStats.sizeOf(r, true);
+                DeletionThrottle.acquire(r, bytes);
+                ArtifactPacker.deletePacked(r);
+                if ( trash ) {
+                    Trash.deleteArtifacts(r);
+                } else {
+                    r.deleteArtifacts();
+                }
+                BuildSize.artifactsDeleted(r);
+                RotationStats.purged(r, bytes);
+                RotationJournal.done(r, this);
+            }
+        },
+        COMPRESS_LOG {
+            @Override
+            void perform(Run<?,?> r, boolean trash) throws IOException {
+                DeletionThrottle.acquire(r, LogCompressor.uncompressedSize(r));
+                long saved = LogCompressor.compress(r);
+                BuildSize.logCompressed(r, saved);
+                RotationStats.compressed(r, saved);
+                RotationJournal.done(r, this);
+            }
+
+            @Override
+            boolean skips(Run<?,?> r) {
+                // keepers are kept, with their logs compressed like any other
+                return false;
+            }
+        },
+        PACK_ARTIFACTS {
+            @Override
+            void perform(Run<?,?> r, boolean trash) throws IOException {
+                DeletionThrottle.acquire(r, ArtifactPacker.unpackedSize(r));
+                long saved = ArtifactPacker.pack(r);
+                if ( saved >= 0 ) RotationStats.packed(r, saved);
+                RotationJournal.done(r, this);
+            }
+
+            @Override
+            boolean skips(Run<?,?> r) {
+                // nothing is lost by packing, so keepers are packed as well
+                return false;
+            }
+        };
+
+        /**
+         * Whether a build that has since been marked as a keeper is to be left alone.
+         */
+        boolean skips(Run<?,?> r) {
+            return r.isKeepLog();
+        }
+
+        /**
+         * Does it right away, within the limits of the {@link DeletionThrottle}, and records it in {@link RotationStats}
+         * and the {@link RotationJournal}.
+         *
+         * @param trash whether to go through the {@link Trash}
+         */
+        abstract void perform(Run<?,?> r, boolean trash) throws IOException;
+    }
+
+    private static final int WORKERS = Math.max(1, Integer.getInteger(DeletionQueue.class.getName() + ".workers", 2));
+
+    private static final int CAPACITY = Integer.getInteger(DeletionQueue.class.getName() + ".capacity", 1000);
+
+    private static final int BATCH_SIZE = Integer.getInteger(DeletionQueue.class.getName() + ".batchSize", 50);
+
+    private static final Worker[] workers = new Worker[WORKERS];
+
+    /**
+     * Queued or running tasks, so that repeated passes do not queue them again.
+     */
+    private static final Set<Task> pending = Collections.newSetFromMap(new ConcurrentHashMap<Task,Boolean>());
+
+    static {
+        for ( int i=0; i<WORKERS; i++ ) {
+            workers[i] = new Worker(i);
+            workers[i].start();
+        }
+    }
+
+    private DeletionQueue() {}
+
+    /**
+     * Queues the given action, waiting for room if the queue is full.
+     * Running it here instead would overtake what is queued for the job already.
+     */
+    static void submit(Run<?,?> r, Action action, boolean trash) throws InterruptedException {
+        BuildKey key = BuildKey.of(r);
+        Task t = new Task(r, key, action, trash);
+        if ( !pending.add(t) ) {
+            LOGGER.log(FINEST, "{0} of {1} is already queued", new Object[] {action, r});
+            return;
+        }
+        Worker w = workers[(key.project.hashCode() & Integer.MAX_VALUE) % WORKERS];
+        boolean queued = false;
+        try {
+            if ( w.queue.remainingCapacity() == 0 ) LOGGER.log(FINE, "Deletion queue is full, waiting to queue {0}", r);
+            w.queue.put(t);
+            queued = true;
+        } finally {
+            // otherwise it could never be queued again
+            if ( !queued ) pending.remove(t);
+        }
+    }
+
+    /**
+     * Whether the given action on the given build is queued or running.
+     */
+    static boolean isPending(BuildKey key, Action action) {
+        return pending.contains(new Task(null, key, action, false));
+    }
+
+    /**
+     * Whether there is nothing queued or running.
+     */
+    static boolean isIdle() {
+        return pending.isEmpty();
+    }
+
+    private static final class Task {
+        final Run<?,?> run;
+        final BuildKey key;
+        final Action action;
+        final boolean trash;
+
+        Task(Run<?,?> run, BuildKey key, Action action, boolean trash) {
+            this.run = run;
+            this.key = key;
+            this.action = action;
+            this.trash = trash;
+        }
+
+        void run() throws IOException {
+            try {
+                // things may have changed since the decision was made
+                if ( action.skips(run) || run.getParent().getBuildByNumber(run.getNumber()) != run ) {
+                    LOGGER.log(FINER, "Skipping queued {0} of {1}", new Object[] {action, run});
+                    RotationJournal.done(run, action);
+                    return;
+                }
+                action.perform(run, trash);
+            } finally {
+                pending.remove(this);
+            }
+        }
+
+        /**
+         * Tasks are the same if they do the same to the same build.
+         */
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Task && ((Task) o).key.equals(key) && ((Task) o).action == action;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode() * 31 + action.hashCode();
+        }
+    }
+
+    private static final class Worker extends Thread {
+        final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>(CAPACITY);
+
+        Worker(int i) {
+            super("LogRotator deletion worker #" + i);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            List<Task> batch = new ArrayList<Task>(BATCH_SIZE);
+            while (true) {
+                try {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                } catch (InterruptedException e) {
+                    // nobody is supposed to stop us; keep serving the queue
+                    LOGGER.log(FINE, "Interrupted while waiting for work, ignoring", e);
+                }
+                LOGGER.log(FINER, "Processing a batch of {0} deletions", batch.size());
+                for ( Task t : batch ) {
+                    try {
+                        t.run();
+                    } catch (IOException e) {
+                        LOGGER.log(WARNING, "Failed to " + t.action + " " + t.run, e);
+                    } catch (RuntimeException e) {
+                        LOGGER.log(WARNING, "Failed to " + t.action + " " + t.run, e);
+                    }
+                }
+                batch.clear();
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DeletionQueue.class.getName());
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Limits how hard removing builds and artifacts hits the disk, as configured in {@link RotationConfiguration}.
+ *
+ * Every removal takes from two token buckets, one counting removals and one counting bytes, and
+ * waits while either is in debt. Removals larger than a threshold can in addition be put off until
+ * the quiet hours; {@link LogRotator} then holds on to the build as {@link HoldReason#DEFERRED},
+ * and the job is rotated again once the quiet hours begin.
+ */
+final class DeletionThrottle {
+
+    private static final long MB = 1024 * 1024;
+
+    private static final Bucket deletes = new Bucket();
+
+    private static final Bucket bytes = new Bucket();
+
+    /**
+     * Full names of the jobs with removals put off until the quiet hours.
+     */
+    private static final Set<String> deferred = Collections.newSetFromMap(new ConcurrentHashMap<String,Boolean>());
+
+    private DeletionThrottle() {}
+
+    /**
+     * Waits until removing something of the given size fits the configured rates.
+     */
+    static void acquire(Run<?,?> r, long size) {
+        RotationConfiguration config = RotationConfiguration.get();
+        if ( config == null ) return;
+        long wait = 0;
+        synchronized (DeletionThrottle.class) {
+            if ( config.getDeletesPerSecond() > 0 ) {
+                wait = deletes.take(1, config.getDeletesPerSecond());
+            }
+            if ( config.getMegabytesPerSecond() > 0 ) {
+                wait = Math.max(wait, bytes.take(size, config.getMegabytesPerSecond() * (double) MB));
+            }
+        }
+        if ( wait <= 0 ) return;
+        LOGGER.log(FINER, "Throttling the removal of {0} for {1} ms", new Object[] {r, TimeUnit.NANOSECONDS.toMillis(wait)});
+        RotationStats.throttled(r, wait);
+        try {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Checks whether removing the build, or its artifacts, is to be put off until the quiet hours.
+     * If so, the job is rotated again when they begin.
+     */
+    static boolean defer(Run<?,?> r, boolean artifactsOnly) {
+        RotationConfiguration config = RotationConfiguration.get();
+        if ( config == null ) return false;
+        List<int[]> windows = quietHours(config);
+        if ( windows.isEmpty() || isQuiet(windows, Calendar.getInstance()) ) return false;
+        long size = RotationStats.sizeOf(r, artifactsOnly);
+        if ( size < config.getDeferAboveMegabytes() * MB ) return false;
+        LOGGER.log(FINE, "Putting off removing {0} of {1} bytes until the quiet hours", new Object[] {r, size});
+        deferred.add(r.getParent().getFullName());
+        RotationStats.deferred(r);
+        return true;
+    }
+
+    private static List<int[]> quietHours(RotationConfiguration config) {
+        try {
+            return parseQuietHours(config.getQuietHours());
+        } catch (IllegalArgumentException e) {
+            LOGGER.log(WARNING, "Ignoring the quiet hours: {0}", e.getMessage());
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Parses quiet hours such as {@code 22:00-06:00, 12-13} into pairs of minutes of the day.
+     * A window may wrap around midnight. Blank means there are no quiet hours.
+     *
+     * @throws IllegalArgumentException if the text cannot be parsed
+     */
+    static List<int[]> parseQuietHours(String text) {
+        List<int[]> windows = new ArrayList<int[]>();
+        if ( text == null ) return windows;
+        for ( String w : text.split(",") ) {
+            w = w.trim();
+            if ( w.length() == 0 ) continue;
+            int dash = w.indexOf('-');
+            if ( dash < 0 ) throw new IllegalArgumentException("Expected a window like 22:00-06:00 but got " + w);
+            windows.add(new int[] {parseTime(w.substring(0, dash)), parseTime(w.substring(dash + 1))});
+        }
+        return windows;
+    }
+
+    private static int parseTime(String t) {
+        t = t.trim();
+        int colon = t.indexOf(':');
+        int hours, minutes = 0;
+        try {
+            if ( colon < 0 ) {
+                hours = Integer.parseInt(t);
+            } else {
+                hours = Integer.parseInt(t.substring(0, colon));
+                minutes = Integer.parseInt(t.substring(colon + 1));
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a time of day: " + t);
+        }
+        if ( hours < 0 || hours > 24 || minutes < 0 || minutes > 59 || hours == 24 && minutes > 0 ) {
+            throw new IllegalArgumentException("Not a time of day: " + t);
+        }
+        return hours * 60 + minutes;
+    }
+
+    /**
+     * Whether the given time falls into one of the windows.
+     */
+    static boolean isQuiet(List<int[]> windows, Calendar now) {
+        int m = now.get(Calendar.HOUR_OF_DAY) * 60 + now.get(Calendar.MINUTE);
+        for ( int[] w : windows ) {
+            if ( w[0] <= w[1] ? w[0] <= m && m < w[1] : m >= w[0] || m < w[1] ) return true;
+        }
+        return false;
+    }
+
+    /**
+     * A token bucket that holds at most one second worth of tokens, and may go into debt.
+     */
+    private static final class Bucket {
+        private double tokens;
+        private long last = System.nanoTime();
+
+        /**
+         * Takes the given amount, and returns how long to wait before going ahead, in nanoseconds.
+         */
+        long take(double amount, double rate) {
+            long now = System.nanoTime();
+            tokens = Math.min(rate, tokens + (now - last) * rate / TimeUnit.SECONDS.toNanos(1));
+            last = now;
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) (-tokens / rate * TimeUnit.SECONDS.toNanos(1));
+        }
+    }
+
+    /**
+     * Rotates the jobs with deferred removals once the quiet hours begin.
+     */
+    @Extension
+    public static final class QuietHoursWork extends AsyncPeriodicWork {
+
+        public QuietHoursWork() {
+            super("Log Rotation Extended quiet hours");
+        }
+
+        @Override
+        public long getRecurrencePeriod() {
+            return MIN;
+        }
+
+        @Override
+        protected void execute(TaskListener listener) throws IOException, InterruptedException {
+            if ( deferred.isEmpty() ) return;
+            RotationConfiguration config = RotationConfiguration.get();
+            if ( config == null || !isQuiet(quietHours(config), Calendar.getInstance()) ) return;
+            List<String> names = new ArrayList<String>(deferred);
+            deferred.removeAll(names);
+            for ( String name : names ) {
+                Job<?,?> job = Jenkins.getInstance().getItemByFullName(name, Job.class);
+                if ( job == null || !(job.getBuildDiscarder() instanceof LogRotator) ) continue;
+                listener.getLogger().println("Rotating " + name + " for the removals put off until the quiet hours");
+                try {
+                    job.getBuildDiscarder().perform(job);
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Failed to rotate " + job, e);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(DeletionThrottle.class.getName());
+}
@@ -0,0 +1,89 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Walks the builds of a job from the newest to the oldest, loading them a small window at a time.
+ *
+ * Unlike {@link Job#getBuilds()}, at most {@link #WINDOW} builds are strongly referenced at any
+ * point, so the lazy loading of the job's build map can drop the ones already visited.
+ * Builds may be deleted while iterating.
+ */
+final class DescendingRunIterator implements Iterator<Run<?,?>> {
+
+    static final int WINDOW = Integer.getInteger(DescendingRunIterator.class.getName() + ".window", 32);
+
+    private final Job<?,?> job;
+    private final ArrayDeque<Run<?,?>> window = new ArrayDeque<Run<?,?>>(WINDOW);
+
+    /**
+     * The next build number to look at, going down.
+     */
+    private int next;
+
+    DescendingRunIterator(Job<?,?> job) {
+        this(job, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Starts at the newest build whose number is not above the given one.
+     */
+    DescendingRunIterator(Job<?,?> job, int start) {
+        this.job = job;
+        this.next = start;
+    }
+
+    public boolean hasNext() {
+        if ( window.isEmpty() ) fill();
+        return !window.isEmpty();
+    }
+
+    public Run<?,?> next() {
+        if ( !hasNext() ) throw new NoSuchElementException();
+        return window.poll();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    private void fill() {
+        while ( window.size() < WINDOW && next > 0 ) {
+            Run<?,?> r = job.getNearestOldBuild(next);
+            if ( r == null ) {
+                next = 0;
+            } else {
+                window.add(r);
+                next = r.getNumber() - 1;
+            }
+        }
+    }
+}
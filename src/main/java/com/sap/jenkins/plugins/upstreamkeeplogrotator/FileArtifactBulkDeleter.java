@@ -0,0 +1,77 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.model.Run;
+import jenkins.model.StandardArtifactManager;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reference {@link ArtifactBulkDeleter} for artifacts kept by the {@link StandardArtifactManager}.
+ *
+ * Stands in for an object store, so that batching can be tried out and measured locally: each batch is one
+ * request, which waits {@link #latencyMillis} like a round trip would, and then deletes the artifacts
+ * directories. Off unless {@link #enabled}, since {@link LogRotator} purges local artifacts well enough by itself,
+ * with the {@link Trash} if asked to.
+ */
+@Extension
+public class FileArtifactBulkDeleter extends ArtifactBulkDeleter {
+
+    /**
+     * Whether local artifacts go through this deleter.
+     */
+    static volatile boolean enabled = Boolean.getBoolean(FileArtifactBulkDeleter.class.getName() + ".enabled");
+
+    /**
+     * Simulated round trip of each request, in milliseconds.
+     */
+    static volatile long latencyMillis = Long.getLong(FileArtifactBulkDeleter.class.getName() + ".latency", 0L);
+
+    private static final AtomicLong requests = new AtomicLong();
+
+    @Override
+    public boolean handles(Run<?,?> r) {
+        return enabled && r.getArtifactManager() instanceof StandardArtifactManager;
+    }
+
+    @Override
+    public void deleteArtifacts(List<Run<?,?>> batch) throws IOException, InterruptedException {
+        requests.incrementAndGet();
+        if ( latencyMillis > 0 ) Thread.sleep(latencyMillis);
+        for ( Run<?,?> r : batch ) {
+            r.getArtifactManager().delete();
+        }
+    }
+
+    /**
+     * Number of requests made so far.
+     */
+    public static long getRequests() {
+        return requests.get();
+    }
+}
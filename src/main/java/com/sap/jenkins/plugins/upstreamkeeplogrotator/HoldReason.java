@@ -0,0 +1,58 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+/**
+ * Why {@link LogRotator} keeps a build (or its artifacts) that its policy would otherwise remove.
+ */
+public enum HoldReason {
+    /**
+     * The build is marked as a keeper.
+     */
+    KEEP_LOG,
+    /**
+     * The build is the last successful build of its job.
+     */
+    LAST_SUCCESSFUL,
+    /**
+     * The build is the last stable build of its job.
+     */
+    LAST_STABLE,
+    /**
+     * The build is still running.
+     */
+    BUILDING,
+    /**
+     * An upstream build that caused this build still exists.
+     */
+    UPSTREAM,
+    /**
+     * The build is not old enough yet.
+     */
+    TOO_NEW,
+    /**
+     * Removing the build, or its artifacts, was put off until the quiet hours, see {@link RotationConfiguration#getQuietHours()}.
+     */
+    DEFERRED
+}
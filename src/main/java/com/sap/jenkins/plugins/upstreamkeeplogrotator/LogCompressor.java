@@ -0,0 +1,115 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Run;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Compresses the log of a completed build in place, for {@link LogRotator#getLogRetention()}.
+ *
+ * The log is streamed into {@code log.gz} next to it, after which the plain log is deleted. Jenkins
+ * falls back to {@code log.gz} when there is no plain log, and decompresses it on the fly wherever the
+ * log is shown or read, so nothing else changes for the user. Until the plain log is gone it is the one
+ * being read, so a reader never sees a half written file.
+ */
+final class LogCompressor {
+
+    static final String PLAIN = "log";
+
+    static final String COMPRESSED = "log.gz";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private LogCompressor() {}
+
+    /**
+     * The size of the plain log of the build, or 0 if there is none.
+     */
+    static long uncompressedSize(Run<?,?> r) {
+        File log = new File(r.getRootDir(), PLAIN);
+        return log.isFile() ? log.length() : 0;
+    }
+
+    /**
+     * Compresses the log of the build, unless it is still being written or compressed already.
+     *
+     * @return the number of bytes saved
+     */
+    static long compress(Run<?,?> r) throws IOException {
+        File log = new File(r.getRootDir(), PLAIN);
+        if ( !log.isFile() || r.isLogUpdated() ) return 0;
+        File gz = new File(r.getRootDir(), COMPRESSED);
+        File tmp = new File(r.getRootDir(), COMPRESSED + ".tmp");
+        long size = log.length();
+
+        InputStream in = new FileInputStream(log);
+        try {
+            OutputStream out = new GZIPOutputStream(new FileOutputStream(tmp), BUFFER_SIZE);
+            try {
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ( (n = in.read(buf)) != -1 ) {
+                    out.write(buf, 0, n);
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            in.close();
+        }
+
+        if ( gz.exists() && !gz.delete() ) {
+            tmp.delete();
+            throw new IOException("Failed to replace " + gz);
+        }
+        if ( !tmp.renameTo(gz) ) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp + " to " + gz);
+        }
+        if ( !log.delete() ) {
+            // e.g. held open on Windows; keep a single copy, try again next time
+            gz.delete();
+            throw new IOException("Failed to delete " + log + " after compressing it");
+        }
+        long saved = size - gz.length();
+        LOGGER.log(FINE, "Compressed the log of {0} from {1} to {2} bytes", new Object[] {r, size, gz.length()});
+        return saved;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(LogCompressor.class.getName());
+}
@@ -24,21 +24,20 @@
  */
 package com.sap.jenkins.plugins.upstreamkeeplogrotator;
 
-import com.google.common.collect.Lists;
 import hudson.Extension;
-import hudson.model.Cause;
 import hudson.model.Job;
 import hudson.model.Run;
 import jenkins.model.BuildDiscarder;
 import jenkins.model.BuildDiscarderDescriptor;
+import jenkins.util.Timer;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import java.io.IOException;
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.GregorianCalendar;
-import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 import static java.util.logging.Level.*;
@@ -46,9 +45,19 @@ import static java.util.logging.Level.*;
 /**
  * Default implementation of {@link BuildDiscarder}.
  *
- * For historical reason, this is called LogRotator, but it does not rotate logs :-)
+ * For historical reason, this is called LogRotator. It does rotate logs now, in a way: the logs of builds
+ * older than {@link #getLogCompressDaysToKeep()} ({@link #getLogCompressHoursToKeep()}) are compressed
+ * by the {@link DeletionQueue}, and still shown as usual. Likewise the artifacts of builds past
+ * {@link #getArtifactPackNumToKeep()} or {@link #getArtifactPackHoursToKeep()} are packed by the {@link ArtifactPacker}.
  * 
  * Since 1.350 it has also the option to keep the build, but delete its recorded artifacts.
+ *
+ * Retention by age can be given in days, hours, or both.
+ *
+ * Builds and artifacts can also be limited by the disk space they take up, as recorded by {@link BuildSize}.
+ *
+ * Artifacts kept elsewhere by an {@link jenkins.model.ArtifactManager} are purged in batches if an
+ * {@link ArtifactBulkDeleter} handles them.
  * 
  * @author Kohsuke Kawaguchi
  */
@@ -59,6 +68,12 @@ public class LogRotator extends BuildDiscarder {
      */
     private final int daysToKeep;
 
+    /**
+     * If not -1 nor null, history is only kept up to this hours.
+     * Null handling is necessary to remain data compatible with old versions.
+     */
+    private final Integer hoursToKeep;
+
     /**
      * If not -1, only this number of build logs are kept.
      */
@@ -71,6 +86,12 @@ public class LogRotator extends BuildDiscarder {
      */
     private final Integer artifactDaysToKeep;
 
+    /**
+     * If not -1 nor null, artifacts are only kept up to this hours.
+     * Null handling is necessary to remain data compatible with old versions.
+     */
+    private final Integer artifactHoursToKeep;
+
     /**
      * If not -1 nor null, only this number of builds have their artifacts kept.
      * Null handling is necessary to remain data compatible with old versions.
@@ -90,11 +111,69 @@ public class LogRotator extends BuildDiscarder {
     private final boolean upstreamKeepArtifacts;
 
     /**
-     * Record of the current build record cleanup jobs.
+     * If true, builds are also kept while any build further up their chain of upstream causes still exists.
+     */
+    private boolean upstreamKeepTransitive;
+
+    /**
+     * If true, the builds that produced the artifacts a build consumed, as told by their fingerprints, count as its upstream builds.
+     */
+    private boolean upstreamKeepFingerprints;
+
+    /**
+     * If true, {@link #perform(Job)} only decides what to delete and leaves the deleting to {@link DeletionQueue}.
+     */
+    private boolean asyncDelete;
+
+    /**
+     * If true, build and artifact directories are moved to the {@link Trash} and deleted from there in the background.
+     */
+    private boolean useTrash;
+
+    /**
+     * If not -1 nor null, the oldest builds are removed while the builds take up more than this many megabytes.
+     */
+    private Integer buildBudget;
+
+    /**
+     * If not -1 nor null, the oldest builds are purged of artifacts while the artifacts take up more than this many megabytes.
+     */
+    private Integer artifactBudget;
+
+    /**
+     * If not -1 nor null, build logs are compressed after this many days.
+     */
+    private Integer logCompressDaysToKeep;
+
+    /**
+     * If not -1 nor null, build logs are compressed after this many hours.
+     */
+    private Integer logCompressHoursToKeep;
+
+    /**
+     * If not -1 nor null, only this number of builds keep their artifacts unpacked.
+     */
+    private Integer artifactPackNumToKeep;
+
+    /**
+     * If not -1 nor null, artifacts are packed after this many hours.
      */
-    private static final HashSet<Job<?,?>> currentCleanupJobs = new HashSet<Job<?,?>>();
+    private Integer artifactPackHoursToKeep;
 
     @DataBoundConstructor
+    public LogRotator (String daysToKeepStr, String hoursToKeepStr, String numToKeepStr,
+                       String artifactDaysToKeepStr, String artifactHoursToKeepStr, String artifactNumToKeepStr,
+                       Boolean upstreamKeep, Boolean upstreamKeepArtifacts) {
+        this (parse(daysToKeepStr),parse(hoursToKeepStr),parse(numToKeepStr),
+              parse(artifactDaysToKeepStr),parse(artifactHoursToKeepStr),parse(artifactNumToKeepStr),
+              parse(upstreamKeep), parse(upstreamKeepArtifacts));
+    }
+
+    /**
+     * @deprecated since TBD
+     *      Use {@link #LogRotator(String, String, String, String, String, String, Boolean, Boolean)}
+     */
+    @Deprecated
     public LogRotator (String daysToKeepStr, String numToKeepStr, String artifactDaysToKeepStr, String artifactNumToKeepStr, Boolean upstreamKeep, Boolean upstreamKeepArtifacts) {
         this (parse(daysToKeepStr),parse(numToKeepStr),
               parse(artifactDaysToKeepStr),parse(artifactNumToKeepStr),
@@ -117,7 +196,7 @@ public class LogRotator extends BuildDiscarder {
 
     /**
      * @deprecated since 1.350.
-     *      Use {@link #LogRotator(int, int, int, int, boolean, boolean)}
+     *      Use {@link #LogRotator(int, int, int, int, int, int, boolean, boolean)}
      */
     @Deprecated
     public LogRotator(int daysToKeep, int numToKeep) {
@@ -126,177 +205,328 @@ public class LogRotator extends BuildDiscarder {
 
     /**
      * @deprecated since TBD
-     *      Use {@link #LogRotator(int, int, int, int, boolean, boolean)}
+     *      Use {@link #LogRotator(int, int, int, int, int, int, boolean, boolean)}
      */
     @Deprecated
     public LogRotator(int daysToKeep, int numToKeep, int artifactDaysToKeep, int artifactNumToKeep) {
         this(daysToKeep, numToKeep, artifactDaysToKeep, artifactNumToKeep, false, false);
     }
 
+    /**
+     * @deprecated since TBD
+     *      Use {@link #LogRotator(int, int, int, int, int, int, boolean, boolean)}
+     */
+    @Deprecated
     public LogRotator(int daysToKeep, int numToKeep, int artifactDaysToKeep, int artifactNumToKeep, boolean upstreamKeep, boolean upstreamKeepArtifacts) {
+        this(daysToKeep, -1, numToKeep, artifactDaysToKeep, -1, artifactNumToKeep, upstreamKeep, upstreamKeepArtifacts);
+    }
+
+    public LogRotator(int daysToKeep, int hoursToKeep, int numToKeep,
+                      int artifactDaysToKeep, int artifactHoursToKeep, int artifactNumToKeep,
+                      boolean upstreamKeep, boolean upstreamKeepArtifacts) {
         this.daysToKeep = daysToKeep;
+        this.hoursToKeep = hoursToKeep;
         this.numToKeep = numToKeep;
         this.artifactDaysToKeep = artifactDaysToKeep;
+        this.artifactHoursToKeep = artifactHoursToKeep;
         this.artifactNumToKeep = artifactNumToKeep;
         this.upstreamKeep = upstreamKeep;
         this.upstreamKeepArtifacts = upstreamKeepArtifacts;
     }
 
+    @DataBoundSetter
+    public void setUpstreamKeepTransitive(boolean upstreamKeepTransitive) {
+        this.upstreamKeepTransitive = upstreamKeepTransitive;
+    }
+
+    @DataBoundSetter
+    public void setUpstreamKeepFingerprints(boolean upstreamKeepFingerprints) {
+        this.upstreamKeepFingerprints = upstreamKeepFingerprints;
+    }
+
+    @DataBoundSetter
+    public void setAsyncDelete(boolean asyncDelete) {
+        this.asyncDelete = asyncDelete;
+    }
+
+    @DataBoundSetter
+    public void setUseTrash(boolean useTrash) {
+        this.useTrash = useTrash;
+    }
+
+    @DataBoundSetter
+    public void setBuildBudgetStr(String buildBudgetStr) {
+        this.buildBudget = parse(buildBudgetStr);
+    }
+
+    @DataBoundSetter
+    public void setArtifactBudgetStr(String artifactBudgetStr) {
+        this.artifactBudget = parse(artifactBudgetStr);
+    }
+
+    @DataBoundSetter
+    public void setLogCompressDaysToKeepStr(String logCompressDaysToKeepStr) {
+        this.logCompressDaysToKeep = parse(logCompressDaysToKeepStr);
+    }
+
+    @DataBoundSetter
+    public void setLogCompressHoursToKeepStr(String logCompressHoursToKeepStr) {
+        this.logCompressHoursToKeep = parse(logCompressHoursToKeepStr);
+    }
+
+    @DataBoundSetter
+    public void setArtifactPackNumToKeepStr(String artifactPackNumToKeepStr) {
+        this.artifactPackNumToKeep = parse(artifactPackNumToKeepStr);
+    }
+
+    @DataBoundSetter
+    public void setArtifactPackHoursToKeepStr(String artifactPackHoursToKeepStr) {
+        this.artifactPackHoursToKeep = parse(artifactPackHoursToKeepStr);
+    }
+
     @Override
-    @SuppressWarnings("rawtypes")
     public void perform(Job<?,?> job) throws IOException, InterruptedException {
-        synchronized(LogRotator.class) {
-            if ( currentCleanupJobs.contains(job) ) {
-                LOGGER.log(FINER, "Log rotation for {0} is already running", job);
-                return;
-            }
-            currentCleanupJobs.add(job);
-        }
-        
+        execute(job, null);
+    }
+
+    /**
+     * Computes what {@link #perform(Job)} would do to the given job, without doing it or saving anything.
+     */
+    public RotationPlan plan(Job<?,?> job) {
+        return plan(job, true);
+    }
+
+    private RotationPlan plan(Job<?,?> job, boolean dryRun) {
+        LOGGER.log(FINE, "Planning the log rotation for {0} with numToKeep={1} daysToKeep={2} hoursToKeep={3} artifactNumToKeep={4} artifactDaysToKeep={5} artifactHoursToKeep={6} upstreamKeep={7} upstreamKeepArtifacts={8}",
+                new Object[] {job, numToKeep, daysToKeep, hoursToKeep, artifactNumToKeep, artifactDaysToKeep, artifactHoursToKeep, upstreamKeep, upstreamKeepArtifacts});
+        return new RotationPlanner(this, job, dryRun).plan();
+    }
+
+    /**
+     * Re-evaluates only the given builds of the job, e.g. after an upstream build holding them was deleted.
+     *
+     * @see UpstreamHoldIndex
+     */
+    void recheck(Job<?,?> job, Collection<Integer> numbers) throws IOException, InterruptedException {
+        LOGGER.log(FINE, "Re-checking builds {1} of {0}", new Object[] {job, numbers});
+        execute(job, new RotationPlanner(this, job).plan(numbers));
+    }
+
+    /**
+     * Applies the given plan, or a fresh plan if null, and then any passes requested in the meantime.
+     */
+    void execute(Job<?,?> job, RotationPlan plan) throws IOException, InterruptedException {
+        if ( !begin(job) ) return;
+        boolean done = false;
         try {
-            LOGGER.log(FINE, "Running the log rotation for {0} with numToKeep={1} daysToKeep={2} artifactNumToKeep={3} artifactDaysToKeep={4} upstreamKeep={5} upstreamKeepArtifacts={6}",
-                    new Object[] {job, numToKeep, daysToKeep, artifactNumToKeep, artifactDaysToKeep, upstreamKeep, upstreamKeepArtifacts});
-
-            // always keep the last successful and the last stable builds
-            Run lsb = job.getLastSuccessfulBuild();
-            Run lstb = job.getLastStableBuild();
-            int artifactNumToKeep = this.artifactNumToKeep != null ? this.artifactNumToKeep : -1; // handle possible null
-            int artifactDaysToKeep = this.artifactDaysToKeep != null ? this.artifactDaysToKeep : -1; // handle possible null
-
-            if ( numToKeep!=-1 || artifactNumToKeep!=-1 ) {
-                // Note that RunList.size is deprecated, and indeed here we are loading all the builds of the job.
-                // However we would need to load the first numToKeep anyway, just to skip over them;
-                // and we would need to load the rest anyway, to delete them.
-                // (Using RunMap.headMap would not suffice, since we do not know if some recent builds have been deleted for other reasons,
-                // so simply subtracting numToKeep from the currently last build number might cause us to delete too many.)
-                List<? extends Run<?,?>> builds = job.getBuilds();
-                int i = Math.min(numToKeep, artifactNumToKeep);
-                if ( i<0 ) i = Math.max(numToKeep, artifactNumToKeep);
-                for (Run r : copy(builds.subList(i, builds.size()))) {
-                    boolean deleted = false;
-                    if ( numToKeep!=-1 && numToKeep <= i ) {
-                        if ( !shouldKeepRun(r, lsb, lstb) ) {
-                            LOGGER.log(FINER, "{0} is to be removed", r);
-                            r.delete();
-                            deleted = true;
-                        }
-                    }
-
-                    if ( !deleted && artifactNumToKeep!=-1 && artifactNumToKeep <= i ) {
-                        if ( !shouldKeepRunArtifacts(r, lsb, lstb) ) {
-                            LOGGER.log(FINER, "{0} is to be purged of artifacts", r);
-                            r.deleteArtifacts();
-                        }
-                    }
-
-                    i++;
-                }
+            apply(plan != null ? plan : plan(job, false));
+            // someone asked for a full rotation while we were busy
+            while ( RotationGuard.again(job) ) {
+                apply(plan(job, false));
             }
+            done = true;
+        } finally {
+            if ( !done && RotationGuard.abort(job) ) retry(job);
+        }
+    }
 
-            if ( daysToKeep!=-1 || artifactDaysToKeep!=-1 ) {
-                Calendar buildCal = new GregorianCalendar();
-                buildCal.add(Calendar.DAY_OF_YEAR,-daysToKeep);
-                Calendar artifactCal = new GregorianCalendar();
-                artifactCal.add(Calendar.DAY_OF_YEAR,-artifactDaysToKeep);
-
-                Run r = job.getFirstBuild();
-                while (r != null) {
-                    boolean deleted = false;
-                    if( daysToKeep!=-1 ) {
-                        if ( !tooNew(r, buildCal) && !shouldKeepRun(r, lsb, lstb) ) {
-                            LOGGER.log(FINER, "{0} is to be removed", r);
-                            r.delete();
-                        }
-                    }
-                    if ( !deleted && artifactDaysToKeep!=-1 ) {
-                        if ( !tooNew(r, artifactCal) && !shouldKeepRunArtifacts(r, lsb, lstb) ) {
-                            LOGGER.log(FINER, "{0} is to be purged of artifacts", r);
-                            r.deleteArtifacts();
-                        }
-                    }
-
-                    if ( (daysToKeep==-1 || tooNew(r, buildCal)) && (artifactDaysToKeep==-1 || tooNew(r, artifactCal)) ) {
-                        break;
-                    }
-
-                    r = r.getNextBuild();
+    /**
+     * Runs the pass requested while a failed pass was running, so that the request is not lost.
+     */
+    private void retry(final Job<?,?> job) {
+        LOGGER.log(FINE, "Rotating {0} again in the background, as requested while the failed pass was running", job);
+        Timer.get().submit(new Runnable() {
+            public void run() {
+                try {
+                    perform(job);
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Failed to rotate " + job, e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
                 }
             }
+        });
+    }
+
+    private void apply(RotationPlan plan) throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        Job<?,?> job = plan.getJob();
+        RotationJournal journal = RotationJournal.of(job);
+        if ( !journal.isEmpty() ) {
+            LOGGER.log(FINE, "Finishing the interrupted rotation of {0}", job);
+            journal.resume(useTrash);
         }
-        finally {
-            synchronized(LogRotator.class) {
-                currentCleanupJobs.remove(job);
-            }
+        List<Run<?,?>> deletes = select(plan, plan.getDeletes(), false);
+        List<Run<?,?>> purges = select(plan, plan.getPurges(), true);
+        List<Run<?,?>> compresses = new ArrayList<Run<?,?>>();
+        for ( RotationPlan.Entry e : plan.getCompresses() ) {
+            Run<?,?> r = load(job, e.getNumber());
+            if ( r != null ) compresses.add(r);
+        }
+        List<Run<?,?>> packs = new ArrayList<Run<?,?>>();
+        for ( RotationPlan.Entry e : plan.getPacks() ) {
+            Run<?,?> r = load(job, e.getNumber());
+            if ( r != null && ArtifactPacker.canPack(r) ) packs.add(r);
         }
+        // once the journal is on disk, the cursor may move on; a restart finishes the job
+        journal.intend(deletes, purges, compresses, packs);
+        if ( plan.cursorChanges != null ) {
+            RotationCursor cursor = RotationCursor.of(job);
+            cursor.apply(plan.cursorChanges);
+            cursor.save();
+        }
+        for ( Run<?,?> r : deletes ) {
+            LOGGER.log(FINER, "Removing {0}", r);
+            delete(r);
+        }
+        // artifacts kept elsewhere go in batches where possible, the rest one build at a time
+        for ( Run<?,?> r : BulkPurge.purge(job, purges) ) {
+            LOGGER.log(FINER, "Purging {0} of artifacts", r);
+            deleteArtifacts(r);
+        }
+        for ( Run<?,?> r : compresses ) {
+            // always in the background, it never frees up space anybody waits for
+            DeletionQueue.submit(r, DeletionQueue.Action.COMPRESS_LOG, false);
+        }
+        for ( Run<?,?> r : packs ) {
+            DeletionQueue.submit(r, DeletionQueue.Action.PACK_ARTIFACTS, false);
+        }
+        RotationStats.pass(job, plan, plan.planNanos + System.nanoTime() - start);
     }
 
-    private boolean shouldKeepRun(Run r, Run lsb, Run lstb) {
-        if ( shouldKeepCompleteRun(r, lsb, lstb) ) return true;
-        if ( upstreamKeep && upstreamBuildsExist(r) ) {
-            LOGGER.log(FINEST, "{0} is not to be removed because an upstream cause still exists", r);
-            return true;
+    /**
+     * Loads the builds the plan selected that are still there and may go now.
+     */
+    private static List<Run<?,?>> select(RotationPlan plan, List<RotationPlan.Entry> entries, boolean artifactsOnly) throws IOException {
+        List<Run<?,?>> runs = new ArrayList<Run<?,?>>(entries.size());
+        for ( RotationPlan.Entry e : entries ) {
+            Run<?,?> r = load(plan.getJob(), e.getNumber());
+            if ( r == null || r.isKeepLog() ) continue;
+            if ( DeletionThrottle.defer(r, artifactsOnly) ) {
+                deferred(plan, r);
+                continue;
+            }
+            runs.add(r);
         }
-        return false;
+        return runs;
     }
 
-    private boolean shouldKeepRunArtifacts(Run r, Run lsb, Run lstb) {
-        if ( shouldKeepCompleteRun(r, lsb, lstb) ) return true;
-        if ( upstreamKeep && upstreamKeepArtifacts && upstreamBuildsExist(r) ) {
-            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because an upstream cause still exists", r);
-            return true;
-        }
-        return false;
+    /**
+     * Keeps the age rules coming back to a build whose removal was put off.
+     */
+    private static void deferred(RotationPlan plan, Run<?,?> r) {
+        if ( plan.cursorChanges != null ) plan.cursorChanges.hold(r.getNumber(), HoldReason.DEFERRED, null);
     }
 
-    private boolean shouldKeepCompleteRun(Run r, Run lsb, Run lstb) {
-        if (r.isKeepLog()) {
-            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s marked as a keeper", r);
-            return true;
-        }
-        if (r == lsb) {
-            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s the last successful build", r);
-            return true;
-        }
-        if (r == lstb) {
-            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s the last stable build", r);
-            return true;
-        }
-        if (r.isBuilding()) {
-            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s still building", r);
-            return true;
+    /**
+     * Loads a build the plan selected, and drops it from the {@link BuildIndex} if it turns out to be gone.
+     */
+    private static Run<?,?> load(Job<?,?> job, int number) throws IOException {
+        Run<?,?> r = job.getBuildByNumber(number);
+        if ( r == null ) {
+            LOGGER.log(FINE, "#{0} of {1} is indexed but does not exist", new Object[] {number, job});
+            BuildIndex.of(job).remove(number);
         }
-        return false;
+        return r;
+    }
+
+    /**
+     * Describes the settings the age rules depend on, see {@link RotationCursor#matches(String)}.
+     */
+    String getAgePolicy() {
+        return "buildRetention=" + getBuildRetention() + ",artifactRetention=" + getArtifactRetention() + ",logRetention=" + getLogRetention()
+                + ",upstreamKeep=" + upstreamKeep + ",upstreamKeepArtifacts=" + upstreamKeepArtifacts
+                + ",upstreamKeepTransitive=" + upstreamKeepTransitive + ",upstreamKeepFingerprints=" + upstreamKeepFingerprints;
+    }
+
+    /**
+     * How long builds are kept, in milliseconds, or -1 if they are kept regardless of age.
+     * If both days and hours are given, the shorter one wins.
+     */
+    long getBuildRetention() {
+        return retention(daysToKeep, unbox(hoursToKeep));
+    }
+
+    /**
+     * How long artifacts are kept, in milliseconds, or -1 if they are kept regardless of age.
+     * If both days and hours are given, the shorter one wins.
+     */
+    long getArtifactRetention() {
+        return retention(unbox(artifactDaysToKeep), unbox(artifactHoursToKeep));
+    }
+
+    /**
+     * How long build logs are kept as they are, in milliseconds, or -1 if they are never compressed.
+     * If both days and hours are given, the shorter one wins.
+     */
+    long getLogRetention() {
+        return retention(unbox(logCompressDaysToKeep), unbox(logCompressHoursToKeep));
+    }
+
+    /**
+     * How long artifacts are kept unpacked, in milliseconds, or -1 if they are not packed because of their age.
+     */
+    long getArtifactPackRetention() {
+        return retention(-1, unbox(artifactPackHoursToKeep));
+    }
+
+    /**
+     * How much disk space the builds may take up, in bytes, or -1 if there is no limit.
+     */
+    long getBuildBudgetBytes() {
+        return megabytes(unbox(buildBudget));
+    }
+
+    /**
+     * How much disk space the artifacts may take up, in bytes, or -1 if there is no limit.
+     */
+    long getArtifactBudgetBytes() {
+        return megabytes(unbox(artifactBudget));
+    }
+
+    private static long megabytes(int mb) {
+        return mb == -1 ? -1 : mb * 1024L * 1024L;
+    }
+
+    private static long retention(int days, int hours) {
+        long r = -1;
+        if ( days != -1 ) r = TimeUnit.DAYS.toMillis(days);
+        if ( hours != -1 && (r == -1 || TimeUnit.HOURS.toMillis(hours) < r) ) r = TimeUnit.HOURS.toMillis(hours);
+        return r;
     }
 
-    private boolean tooNew(Run r, Calendar cal) {
-        if (!r.getTimestamp().before(cal)) {
-            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s still new", r);
-            return true;
+    private void delete(Run<?,?> r) throws IOException, InterruptedException {
+        if ( asyncDelete ) {
+            DeletionQueue.submit(r, DeletionQueue.Action.DELETE, useTrash);
         } else {
-            return false;
+            DeletionQueue.Action.DELETE.perform(r, useTrash);
         }
     }
 
-    private boolean upstreamBuildsExist(Run<?,?> r) {
-        for ( Cause c : r.getCauses() ) {
-            if ( c instanceof Cause.UpstreamCause ) {
-                if ( ((Cause.UpstreamCause)c).getUpstreamRun() != null ) return true;
-            }
+    private void deleteArtifacts(Run<?,?> r) throws IOException, InterruptedException {
+        if ( asyncDelete ) {
+            DeletionQueue.submit(r, DeletionQueue.Action.DELETE_ARTIFACTS, useTrash);
+        } else {
+            DeletionQueue.Action.DELETE_ARTIFACTS.perform(r, useTrash);
         }
-        return false;
     }
 
-    /**
-     * Creates a copy since we'll be deleting some entries from them.
-     */
-    private <R> Collection<R> copy(Iterable<R> src) {
-        return Lists.newArrayList(src);
+    private static boolean begin(Job<?,?> job) {
+        if ( !RotationGuard.begin(job) ) {
+            LOGGER.log(FINER, "Log rotation for {0} is already running, it will do another pass", job);
+            return false;
+        }
+        return true;
     }
 
     public int getDaysToKeep() {
         return daysToKeep;
     }
 
+    public int getHoursToKeep() {
+        return unbox(hoursToKeep);
+    }
+
     public int getNumToKeep() {
         return numToKeep;
     }
@@ -305,6 +535,10 @@ public class LogRotator extends BuildDiscarder {
         return unbox(artifactDaysToKeep);
     }
 
+    public int getArtifactHoursToKeep() {
+        return unbox(artifactHoursToKeep);
+    }
+
     public int getArtifactNumToKeep() {
         return unbox(artifactNumToKeep);
     }
@@ -313,6 +547,10 @@ public class LogRotator extends BuildDiscarder {
         return toString(daysToKeep);
     }
 
+    public String getHoursToKeepStr() {
+        return toString(hoursToKeep);
+    }
+
     public String getNumToKeepStr() {
         return toString(numToKeep);
     }
@@ -321,10 +559,62 @@ public class LogRotator extends BuildDiscarder {
         return toString(artifactDaysToKeep);
     }
 
+    public String getArtifactHoursToKeepStr() {
+        return toString(artifactHoursToKeep);
+    }
+
     public String getArtifactNumToKeepStr() {
         return toString(artifactNumToKeep);
     }
 
+    public int getBuildBudget() {
+        return unbox(buildBudget);
+    }
+
+    public int getArtifactBudget() {
+        return unbox(artifactBudget);
+    }
+
+    public String getBuildBudgetStr() {
+        return toString(buildBudget);
+    }
+
+    public String getArtifactBudgetStr() {
+        return toString(artifactBudget);
+    }
+
+    public int getLogCompressDaysToKeep() {
+        return unbox(logCompressDaysToKeep);
+    }
+
+    public int getLogCompressHoursToKeep() {
+        return unbox(logCompressHoursToKeep);
+    }
+
+    public String getLogCompressDaysToKeepStr() {
+        return toString(logCompressDaysToKeep);
+    }
+
+    public String getLogCompressHoursToKeepStr() {
+        return toString(logCompressHoursToKeep);
+    }
+
+    public int getArtifactPackNumToKeep() {
+        return unbox(artifactPackNumToKeep);
+    }
+
+    public int getArtifactPackHoursToKeep() {
+        return unbox(artifactPackHoursToKeep);
+    }
+
+    public String getArtifactPackNumToKeepStr() {
+        return toString(artifactPackNumToKeep);
+    }
+
+    public String getArtifactPackHoursToKeepStr() {
+        return toString(artifactPackHoursToKeep);
+    }
+
     public boolean isUpstreamKeep() {
         return upstreamKeep;
     }
@@ -333,6 +623,22 @@ public class LogRotator extends BuildDiscarder {
         return upstreamKeepArtifacts;
     }
 
+    public boolean isUpstreamKeepTransitive() {
+        return upstreamKeepTransitive;
+    }
+
+    public boolean isUpstreamKeepFingerprints() {
+        return upstreamKeepFingerprints;
+    }
+
+    public boolean isAsyncDelete() {
+        return asyncDelete;
+    }
+
+    public boolean isUseTrash() {
+        return useTrash;
+    }
+
     private int unbox(Integer i) {
         return i==null ? -1: i;
     }
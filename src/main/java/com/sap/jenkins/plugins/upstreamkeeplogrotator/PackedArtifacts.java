@@ -0,0 +1,306 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.Util;
+import hudson.model.BuildListener;
+import hudson.model.Run;
+import jenkins.model.ArtifactManager;
+import jenkins.util.VirtualFile;
+import org.apache.tools.ant.types.selectors.SelectorUtils;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The {@link ArtifactManager} of a build whose artifacts the {@link ArtifactPacker} packed, stored in its build record.
+ *
+ * Its {@link #root()} is a view of the archive, so the artifacts are listed and served as before, at the usual
+ * {@code artifact/} URLs and through the permalinks, each file being decompressed from the archive as it is read.
+ */
+public final class PackedArtifacts extends ArtifactManager {
+
+    /**
+     * Absolute path of the archive in the cold artifact directory, or null if it is in the build directory.
+     */
+    private volatile String archive;
+
+    /**
+     * Bytes the artifacts took up before they were packed.
+     */
+    private final long size;
+
+    private transient Run<?,?> build;
+
+    /**
+     * The files in the archive by path, read once and then served from memory for as long as it can be spared.
+     */
+    private transient volatile SoftReference<NavigableMap<String,ZipEntry>> files;
+
+    PackedArtifacts(Run<?,?> build, String archive, long size) {
+        this.build = build;
+        this.archive = archive;
+        this.size = size;
+    }
+
+    /**
+     * Returns where the artifacts of the build were packed, or null if they were not.
+     */
+    static PackedArtifacts of(Run<?,?> r) {
+        ArtifactManager m = r.getArtifactManager();
+        return m instanceof PackedArtifacts ? (PackedArtifacts) m : null;
+    }
+
+    @Override
+    public void onLoad(Run<?,?> build) {
+        this.build = build;
+    }
+
+    @Override
+    public void archive(FilePath workspace, Launcher launcher, BuildListener listener, Map<String,String> artifacts) throws IOException {
+        throw new IOException("The artifacts of " + build + " have been packed already");
+    }
+
+    /**
+     * Deletes the archive, a single unlink.
+     */
+    @Override
+    public boolean delete() throws IOException {
+        File f = getArchive();
+        files = null;
+        if ( !f.exists() ) return false;
+        if ( !f.delete() ) throw new IOException("Failed to delete " + f);
+        return true;
+    }
+
+    @Override
+    public VirtualFile root() {
+        return new Packed(getArchive(), "");
+    }
+
+    /**
+     * The files in the archive by path; directories are left out.
+     */
+    private NavigableMap<String,ZipEntry> files() throws IOException {
+        SoftReference<NavigableMap<String,ZipEntry>> ref = files;
+        NavigableMap<String,ZipEntry> m = ref != null ? ref.get() : null;
+        if ( m != null ) return m;
+        File archive = getArchive();
+        m = new TreeMap<String,ZipEntry>();
+        if ( archive.isFile() ) {
+            ZipFile zip = new ZipFile(archive);
+            try {
+                for ( Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entry = e.nextElement();
+                    if ( !entry.isDirectory() ) m.put(entry.getName(), entry);
+                }
+            } finally {
+                zip.close();
+            }
+        }
+        files = new SoftReference<NavigableMap<String,ZipEntry>>(m);
+        return m;
+    }
+
+    /**
+     * Points at the archive in its new place after the directory holding it was moved.
+     *
+     * @return whether the archive was in that directory
+     */
+    boolean moved(File from, File to) {
+        String a = archive;
+        String prefix = from.getAbsolutePath() + File.separator;
+        if ( a == null || !a.startsWith(prefix) ) return false;
+        archive = new File(to, a.substring(prefix.length())).getAbsolutePath();
+        files = null;
+        return true;
+    }
+
+    public File getArchive() {
+        return archive != null ? new File(archive) : new File(build.getRootDir(), ArtifactPacker.IN_PLACE);
+    }
+
+    public boolean isInPlace() {
+        return archive == null;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getPackedSize() {
+        return getArchive().length();
+    }
+
+    /**
+     * A file or directory in the archive. Directories are implied by the paths of the files.
+     */
+    private final class Packed extends VirtualFile {
+        private final File archive;
+
+        /**
+         * Relative path without a trailing slash, empty for the root.
+         */
+        private final String path;
+
+        Packed(File archive, String path) {
+            this.archive = archive;
+            this.path = path;
+        }
+
+        private ZipEntry entry() throws IOException {
+            return path.length() == 0 ? null : files().get(path);
+        }
+
+        /**
+         * The files under this directory, by their paths in the archive.
+         */
+        private Map<String,ZipEntry> below() throws IOException {
+            String prefix = prefix();
+            if ( prefix.length() == 0 ) return files();
+            // '/' + 1 == '0', so this is everything starting with the prefix
+            return files().subMap(prefix, true, path + "0", false);
+        }
+
+        private String prefix() {
+            return path.length() == 0 ? "" : path + "/";
+        }
+
+        @Override
+        public String getName() {
+            return path.substring(path.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public URI toURI() {
+            return URI.create("jar:" + archive.toURI() + "!/" + Util.encode(path));
+        }
+
+        @Override
+        public VirtualFile getParent() {
+            return new Packed(archive, path.substring(0, Math.max(0, path.lastIndexOf('/'))));
+        }
+
+        @Override
+        public boolean isDirectory() throws IOException {
+            if ( path.length() == 0 ) return archive.isFile();
+            return !below().isEmpty();
+        }
+
+        @Override
+        public boolean isFile() throws IOException {
+            return entry() != null;
+        }
+
+        @Override
+        public boolean exists() throws IOException {
+            return isFile() || isDirectory();
+        }
+
+        @Override
+        public VirtualFile[] list() throws IOException {
+            Set<String> names = new TreeSet<String>();
+            for ( String f : below().keySet() ) {
+                String rest = f.substring(prefix().length());
+                int slash = rest.indexOf('/');
+                names.add(slash == -1 ? rest : rest.substring(0, slash));
+            }
+            List<VirtualFile> children = new ArrayList<VirtualFile>(names.size());
+            for ( String n : names ) {
+                children.add(child(n));
+            }
+            return children.toArray(new VirtualFile[children.size()]);
+        }
+
+        @Override
+        public String[] list(String glob) throws IOException {
+            List<String> matches = new ArrayList<String>();
+            for ( String f : below().keySet() ) {
+                String rest = f.substring(prefix().length());
+                if ( SelectorUtils.matchPath(glob, rest) ) matches.add(rest);
+            }
+            return matches.toArray(new String[matches.size()]);
+        }
+
+        @Override
+        public VirtualFile child(String name) {
+            return new Packed(archive, prefix() + name);
+        }
+
+        @Override
+        public long length() throws IOException {
+            ZipEntry e = entry();
+            return e != null ? e.getSize() : 0;
+        }
+
+        @Override
+        public long lastModified() throws IOException {
+            ZipEntry e = entry();
+            return e != null ? e.getTime() : 0;
+        }
+
+        @Override
+        public boolean canRead() throws IOException {
+            return archive.canRead();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            if ( entry() == null ) throw new FileNotFoundException(path + " in " + archive);
+            final ZipFile zip = new ZipFile(archive);
+            ZipEntry e = path.length() > 0 ? zip.getEntry(path) : null;
+            if ( e == null || e.isDirectory() ) {
+                zip.close();
+                throw new FileNotFoundException(path + " in " + archive);
+            }
+            return new FilterInputStream(zip.getInputStream(e)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.model.AbstractProject;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.DependencyGraph;
+import hudson.model.Job;
+import hudson.model.PeriodicWork;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Periodically rotates every job that uses {@link LogRotator}, so that idle jobs shrink too.
+ *
+ * Jobs are processed in waves: first the jobs without upstream jobs, then their downstream jobs, and so on.
+ * That way builds held by {@link LogRotator#isUpstreamKeep()} are released in the same sweep that removes
+ * their upstream builds. Within a wave, jobs are rotated in parallel as configured in {@link RotationConfiguration}.
+ */
+@Extension
+public class RetentionSweeper extends AsyncPeriodicWork {
+
+    private volatile long lastSweepStarted;
+
+    private volatile long lastSweepDuration = -1;
+
+    private volatile int lastSweepJobs;
+
+    public RetentionSweeper() {
+        super("Log Rotation Extended sweep");
+    }
+
+    public static RetentionSweeper get() {
+        return PeriodicWork.all().get(RetentionSweeper.class);
+    }
+
+    /**
+     * Checks every minute whether a sweep is due, so that interval changes apply without a restart.
+     */
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        RotationConfiguration config = RotationConfiguration.get();
+        // not loaded yet, or Jenkins is shutting down
+        if ( config == null || config.getSweepIntervalMinutes() <= 0 ) return;
+        if ( System.currentTimeMillis() - lastSweepStarted < TimeUnit.MINUTES.toMillis(config.getSweepIntervalMinutes()) ) return;
+        sweep(listener, config.getSweepThreads(), config.getSweepParallelism());
+    }
+
+    /**
+     * Rotates all jobs using {@link LogRotator}, upstream jobs first.
+     */
+    void sweep(TaskListener listener, int threads, int parallelism) throws InterruptedException {
+        PrintStream logger = listener.getLogger();
+        long start = System.currentTimeMillis();
+        lastSweepStarted = start;
+
+        List<List<Job<?,?>>> waves = waves(Jenkins.getInstance());
+        int total = 0;
+        for ( List<Job<?,?>> wave : waves ) total += wave.size();
+        logger.printf("Sweeping %d jobs in %d waves with %d threads, at most %d at a time%n", total, waves.size(), threads, parallelism);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Log Rotation Extended sweep"));
+        final Semaphore permits = new Semaphore(parallelism);
+        final AtomicInteger done = new AtomicInteger();
+        try {
+            for ( List<Job<?,?>> wave : waves ) {
+                List<Future<?>> futures = new ArrayList<Future<?>>(wave.size());
+                for ( final Job<?,?> job : wave ) {
+                    permits.acquire();
+                    futures.add(pool.submit(new Runnable() {
+                        public void run() {
+                            try {
+                                job.getBuildDiscarder().perform(job);
+                            } catch (IOException e) {
+                                LOGGER.log(WARNING, "Failed to rotate " + job, e);
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } finally {
+                                done.incrementAndGet();
+                                permits.release();
+                            }
+                        }
+                    }));
+                }
+                // the next wave depends on this one being complete
+                for ( Future<?> f : futures ) {
+                    try {
+                        f.get();
+                    } catch (ExecutionException e) {
+                        LOGGER.log(WARNING, "Failed to rotate a job", e.getCause());
+                    }
+                }
+                logger.printf("Swept %d of %d jobs%n", done.get(), total);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        lastSweepDuration = System.currentTimeMillis() - start;
+        lastSweepJobs = total;
+        logger.printf("Swept %d jobs in %d ms%n", total, lastSweepDuration);
+        LOGGER.log(INFO, "Swept {0} jobs in {1} ms", new Object[] {total, lastSweepDuration});
+    }
+
+    /**
+     * Groups the jobs using {@link LogRotator} so that each job comes after all its upstream jobs.
+     */
+    static List<List<Job<?,?>>> waves(Jenkins jenkins) {
+        DependencyGraph graph = jenkins.getDependencyGraph();
+        Map<Job<?,?>,Integer> levels = new HashMap<Job<?,?>,Integer>();
+        TreeMap<Integer,List<Job<?,?>>> byLevel = new TreeMap<Integer,List<Job<?,?>>>();
+        for ( Job<?,?> job : jenkins.getAllItems(Job.class) ) {
+            if ( !(job.getBuildDiscarder() instanceof LogRotator) ) continue;
+            int level = level(job, graph, levels, new HashSet<Job<?,?>>());
+            List<Job<?,?>> wave = byLevel.get(level);
+            if ( wave == null ) byLevel.put(level, wave = new ArrayList<Job<?,?>>());
+            wave.add(job);
+        }
+        return new ArrayList<List<Job<?,?>>>(byLevel.values());
+    }
+
+    /**
+     * The length of the longest upstream chain leading to the given job, ignoring cycles.
+     */
+    private static int level(Job<?,?> job, DependencyGraph graph, Map<Job<?,?>,Integer> levels, Set<Job<?,?>> visiting) {
+        Integer known = levels.get(job);
+        if ( known != null ) return known;
+        int level = 0;
+        if ( job instanceof AbstractProject && visiting.add(job) ) {
+            for ( AbstractProject<?,?> up : graph.getUpstream((AbstractProject<?,?>) job) ) {
+                if ( !visiting.contains(up) ) level = Math.max(level, level(up, graph, levels, visiting) + 1);
+            }
+            visiting.remove(job);
+        }
+        levels.put(job, level);
+        return level;
+    }
+
+    /**
+     * Duration of the last complete sweep in milliseconds, or -1 if there was none yet.
+     */
+    public long getLastSweepDuration() {
+        return lastSweepDuration;
+    }
+
+    /**
+     * Number of jobs rotated by the last complete sweep.
+     */
+    public int getLastSweepJobs() {
+        return lastSweepJobs;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RetentionSweeper.class.getName());
+}
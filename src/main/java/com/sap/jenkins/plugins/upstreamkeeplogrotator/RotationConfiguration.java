@@ -0,0 +1,222 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import java.io.File;
+
+/**
+ * Controller wide settings of the upstream keep log rotation.
+ */
+@Extension
+public class RotationConfiguration extends GlobalConfiguration {
+
+    /**
+     * Minutes between two runs of the {@link RetentionSweeper}, or 0 to only rotate when builds complete.
+     */
+    private int sweepIntervalMinutes;
+
+    /**
+     * Size of the thread pool the {@link RetentionSweeper} rotates jobs on.
+     */
+    private int sweepThreads = 4;
+
+    /**
+     * Maximum number of jobs the {@link RetentionSweeper} rotates at the same time.
+     */
+    private int sweepParallelism = 4;
+
+    /**
+     * Builds removed per second at most, across all jobs, or 0 for no limit.
+     */
+    private int deletesPerSecond;
+
+    /**
+     * Megabytes removed per second at most, across all jobs, or 0 for no limit.
+     */
+    private int megabytesPerSecond;
+
+    /**
+     * Windows such as {@code 22:00-06:00} outside of which large removals are put off, or blank.
+     */
+    private String quietHours;
+
+    /**
+     * Removals of at least this many megabytes wait for the {@link #quietHours}.
+     */
+    private int deferAboveMegabytes = 100;
+
+    /**
+     * Directory the {@link ArtifactPacker} puts the archives of packed artifacts in, or blank to keep them in the build directories.
+     */
+    private String coldArtifactDir;
+
+    /**
+     * Builds handed to an {@link ArtifactBulkDeleter} at once.
+     */
+    private int bulkDeleteBatchSize = 100;
+
+    /**
+     * Batches an {@link ArtifactBulkDeleter} works on at the same time for a job.
+     */
+    private int bulkDeleteConcurrency = 4;
+
+    public RotationConfiguration() {
+        load();
+    }
+
+    public static RotationConfiguration get() {
+        return GlobalConfiguration.all().get(RotationConfiguration.class);
+    }
+
+    @Override
+    public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        return true;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Log Rotation Extended";
+    }
+
+    public int getSweepIntervalMinutes() {
+        return sweepIntervalMinutes;
+    }
+
+    public void setSweepIntervalMinutes(int sweepIntervalMinutes) {
+        this.sweepIntervalMinutes = Math.max(0, sweepIntervalMinutes);
+    }
+
+    public int getSweepThreads() {
+        return sweepThreads;
+    }
+
+    public void setSweepThreads(int sweepThreads) {
+        this.sweepThreads = Math.max(1, sweepThreads);
+    }
+
+    public int getSweepParallelism() {
+        return sweepParallelism;
+    }
+
+    public void setSweepParallelism(int sweepParallelism) {
+        this.sweepParallelism = Math.max(1, sweepParallelism);
+    }
+
+    /**
+     * @see DeletionThrottle
+     */
+    public int getDeletesPerSecond() {
+        return deletesPerSecond;
+    }
+
+    public void setDeletesPerSecond(int deletesPerSecond) {
+        this.deletesPerSecond = Math.max(0, deletesPerSecond);
+    }
+
+    public int getMegabytesPerSecond() {
+        return megabytesPerSecond;
+    }
+
+    public void setMegabytesPerSecond(int megabytesPerSecond) {
+        this.megabytesPerSecond = Math.max(0, megabytesPerSecond);
+    }
+
+    public String getQuietHours() {
+        return quietHours;
+    }
+
+    public void setQuietHours(String quietHours) {
+        this.quietHours = quietHours != null && quietHours.trim().length() > 0 ? quietHours.trim() : null;
+    }
+
+    public int getDeferAboveMegabytes() {
+        return deferAboveMegabytes;
+    }
+
+    public void setDeferAboveMegabytes(int deferAboveMegabytes) {
+        this.deferAboveMegabytes = Math.max(0, deferAboveMegabytes);
+    }
+
+    /**
+     * @see ArtifactPacker
+     */
+    public String getColdArtifactDir() {
+        return coldArtifactDir;
+    }
+
+    public void setColdArtifactDir(String coldArtifactDir) {
+        this.coldArtifactDir = coldArtifactDir != null && coldArtifactDir.trim().length() > 0 ? coldArtifactDir.trim() : null;
+    }
+
+    /**
+     * @see BulkPurge
+     */
+    public int getBulkDeleteBatchSize() {
+        return bulkDeleteBatchSize;
+    }
+
+    public void setBulkDeleteBatchSize(int bulkDeleteBatchSize) {
+        this.bulkDeleteBatchSize = Math.max(1, bulkDeleteBatchSize);
+    }
+
+    public int getBulkDeleteConcurrency() {
+        return bulkDeleteConcurrency;
+    }
+
+    public void setBulkDeleteConcurrency(int bulkDeleteConcurrency) {
+        this.bulkDeleteConcurrency = Math.max(1, bulkDeleteConcurrency);
+    }
+
+    public FormValidation doCheckQuietHours(@QueryParameter String value) {
+        try {
+            DeletionThrottle.parseQuietHours(value);
+            return FormValidation.ok();
+        } catch (IllegalArgumentException e) {
+            return FormValidation.error(e.getMessage());
+        }
+    }
+
+    /**
+     * Only tells administrators what is on the file system.
+     */
+    public FormValidation doCheckColdArtifactDir(@QueryParameter String value) {
+        if ( !Jenkins.getInstance().hasPermission(Jenkins.ADMINISTER) ) return FormValidation.ok();
+        if ( value == null || value.trim().length() == 0 ) return FormValidation.ok();
+        File dir = new File(value.trim());
+        if ( !dir.isAbsolute() ) return FormValidation.error("Not an absolute path");
+        if ( dir.exists() && !dir.isDirectory() ) return FormValidation.error("Not a directory");
+        if ( !dir.exists() ) return FormValidation.warning("Does not exist yet, it will be created");
+        return FormValidation.ok();
+    }
+}
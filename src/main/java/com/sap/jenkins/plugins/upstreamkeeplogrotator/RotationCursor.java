@@ -0,0 +1,342 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.Saveable;
+import hudson.model.listeners.RunListener;
+import hudson.model.listeners.SaveableListener;
+import jenkins.model.Jenkins;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Remembers how far the age based rotation of a job has progressed, so that a pass does not
+ * have to start over at {@link Job#getFirstBuild()}.
+ *
+ * Every build up to {@link #buildCursor} ({@link #artifactCursor}) has been processed by the
+ * build (artifact) age rule: it has been removed (purged), or it is listed in {@link #holds}
+ * together with the reason it was kept. A pass resumes after the cursors and only revisits the
+ * holds whose reason may have gone away. The logs of all builds up to {@link #logCursor} have been
+ * compressed, or the builds are gone.
+ *
+ * Stored next to the job configuration.
+ */
+final class RotationCursor {
+
+    static final String FILE_NAME = "upstreamkeep-logrotator-cursor.xml";
+
+    /**
+     * The age policy the cursors were computed for. If it changes, everything starts over.
+     */
+    private String policy;
+
+    private int buildCursor;
+
+    private int artifactCursor;
+
+    private int logCursor;
+
+    /**
+     * Builds up to the cursors that were kept, by number.
+     * Modified only by {@link #apply(Changes)} and the listeners.
+     */
+    private TreeMap<Integer,Hold> holds = new TreeMap<Integer,Hold>();
+
+    private transient XmlFile file;
+
+    private transient boolean dirty;
+
+    /**
+     * A build the age rules did not remove, and why.
+     */
+    static final class Hold {
+        final HoldReason reason;
+
+        /**
+         * For {@link HoldReason#UPSTREAM}, the upstream builds as {@code project#number}.
+         */
+        final String[] upstream;
+
+        /**
+         * Set once the reason is known to no longer apply.
+         */
+        boolean released;
+
+        Hold(HoldReason reason, String[] upstream) {
+            this.reason = reason;
+            this.upstream = upstream;
+        }
+
+        List<BuildKey> getUpstream() {
+            if ( upstream == null ) return Collections.emptyList();
+            List<BuildKey> r = new ArrayList<BuildKey>(upstream.length);
+            for ( String u : upstream ) {
+                int i = u.lastIndexOf('#');
+                r.add(new BuildKey(u.substring(0, i), Integer.parseInt(u.substring(i+1))));
+            }
+            return r;
+        }
+
+        /**
+         * Whether the reason for this hold may have gone away.
+         */
+        boolean mayHaveChanged(int number, int lsb, int lstb) {
+            if ( released ) return true;
+            switch (reason) {
+            case KEEP_LOG:
+                return false; // see SaveableListenerImpl
+            case LAST_SUCCESSFUL:
+                return lsb != number;
+            case LAST_STABLE:
+                return lstb != number;
+            case UPSTREAM:
+                for ( BuildKey u : getUpstream() ) {
+                    if ( !UpstreamBuildCache.exists(u.project, u.number) ) return true;
+                }
+                return false;
+            default:
+                return true;
+            }
+        }
+    }
+
+    private static final Map<Job<?,?>,RotationCursor> cursors = new WeakHashMap<Job<?,?>,RotationCursor>();
+
+    /**
+     * Gets the cursor of the given job, loading it if necessary.
+     */
+    static RotationCursor of(Job<?,?> job) {
+        synchronized (cursors) {
+            RotationCursor c = cursors.get(job);
+            if ( c == null ) {
+                c = load(job, true);
+                cursors.put(job, c);
+            }
+            return c;
+        }
+    }
+
+    /**
+     * Gets the cursor of the given job like {@link #of(Job)}, but without keeping one it has to load,
+     * or telling the {@link UpstreamHoldIndex} about its holds.
+     */
+    static RotationCursor peek(Job<?,?> job) {
+        RotationCursor c = ifLoaded(job);
+        return c != null ? c : load(job, false);
+    }
+
+    /**
+     * Gets the cursor of the given job if it is already in memory.
+     */
+    static RotationCursor ifLoaded(Job<?,?> job) {
+        synchronized (cursors) {
+            return cursors.get(job);
+        }
+    }
+
+    private static RotationCursor load(Job<?,?> job, boolean register) {
+        XmlFile f = new XmlFile(Jenkins.XSTREAM2, new File(job.getRootDir(), FILE_NAME));
+        RotationCursor c = null;
+        if ( f.exists() ) {
+            try {
+                c = (RotationCursor) f.read();
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to load " + f + ", starting over", e);
+            } catch (ClassCastException e) {
+                LOGGER.log(WARNING, "Unexpected contents in " + f + ", starting over", e);
+            }
+        }
+        if ( c == null ) c = new RotationCursor();
+        c.file = f;
+        if ( !register ) return c;
+        // the reverse index lives in memory only; tell it about the holds we know of
+        for ( Map.Entry<Integer,Hold> e : c.holds.entrySet() ) {
+            if ( e.getValue().reason == HoldReason.UPSTREAM ) {
+                UpstreamHoldIndex.register(new BuildKey(job.getFullName(), e.getKey()), e.getValue().getUpstream());
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Whether the cursor was computed for the given policy. If not, the planner starts over.
+     */
+    synchronized boolean matches(String policy) {
+        return policy.equals(this.policy);
+    }
+
+    synchronized int getBuildCursor() {
+        return buildCursor;
+    }
+
+    synchronized int getArtifactCursor() {
+        return artifactCursor;
+    }
+
+    synchronized int getLogCursor() {
+        return logCursor;
+    }
+
+    /**
+     * Returns the numbers of the held builds that need another look,
+     * given the numbers of the last successful and stable builds (or -1).
+     */
+    synchronized List<Integer> getHoldsToRevisit(int lsb, int lstb) {
+        List<Integer> r = new ArrayList<Integer>();
+        for ( Map.Entry<Integer,Hold> e : holds.entrySet() ) {
+            if ( e.getValue().mayHaveChanged(e.getKey(), lsb, lstb) ) r.add(e.getKey());
+        }
+        return r;
+    }
+
+    synchronized void forget(int number) {
+        if ( holds.remove(number) != null ) dirty = true;
+    }
+
+    /**
+     * Records what a {@link RotationPlan} has done.
+     */
+    synchronized void apply(Changes c) {
+        if ( !c.policy.equals(policy) ) {
+            LOGGER.log(FINE, "Rotation policy changed from {0} to {1}, starting over", new Object[] {policy, c.policy});
+            policy = c.policy;
+            buildCursor = 0;
+            artifactCursor = 0;
+            logCursor = 0;
+            holds.clear();
+        }
+        buildCursor = Math.max(buildCursor, c.buildCursor);
+        artifactCursor = Math.max(artifactCursor, c.artifactCursor);
+        logCursor = Math.max(logCursor, c.logCursor);
+        for ( Integer n : c.forgotten ) {
+            holds.remove(n);
+        }
+        holds.putAll(c.holds);
+        dirty = true;
+    }
+
+    /**
+     * The updates a {@link RotationPlan} makes to the cursor once it has been executed.
+     */
+    static final class Changes {
+        final String policy;
+        int buildCursor;
+        int artifactCursor;
+        int logCursor;
+        final Map<Integer,Hold> holds = new TreeMap<Integer,Hold>();
+        final Set<Integer> forgotten = new TreeSet<Integer>();
+
+        Changes(String policy) {
+            this.policy = policy;
+        }
+
+        void hold(int number, HoldReason reason, List<BuildKey> upstream) {
+            String[] u = null;
+            if ( reason == HoldReason.UPSTREAM ) {
+                u = new String[upstream.size()];
+                for ( int i=0; i<u.length; i++ ) {
+                    u[i] = upstream.get(i).project + '#' + upstream.get(i).number;
+                }
+            }
+            holds.put(number, new Hold(reason, u));
+            forgotten.remove(number);
+        }
+
+        void forget(int number) {
+            holds.remove(number);
+            forgotten.add(number);
+        }
+    }
+
+    /**
+     * Marks a build held as a keeper for revisiting.
+     */
+    private synchronized boolean releaseKeeper(int number) {
+        Hold h = holds.get(number);
+        if ( h == null || h.reason != HoldReason.KEEP_LOG || h.released ) return false;
+        h.released = true;
+        dirty = true;
+        return true;
+    }
+
+    synchronized void save() throws IOException {
+        if ( !dirty ) return;
+        file.write(this);
+        dirty = false;
+    }
+
+    private Object readResolve() {
+        // XStream does not run field initializers
+        if ( holds == null ) holds = new TreeMap<Integer,Hold>();
+        return this;
+    }
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            RotationCursor c = ifLoaded(r.getParent());
+            if ( c != null ) c.forget(r.getNumber());
+        }
+    }
+
+    /**
+     * There is no event for a build losing its keeper mark, but the build gets saved.
+     */
+    @Extension
+    public static final class SaveableListenerImpl extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if ( !(o instanceof Run) ) return;
+            Run<?,?> r = (Run<?,?>) o;
+            if ( r.isKeepLog() || !(r.getParent().getBuildDiscarder() instanceof LogRotator) ) return;
+            RotationCursor c = of(r.getParent());
+            if ( c.releaseKeeper(r.getNumber()) ) {
+                try {
+                    c.save();
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Failed to save the rotation cursor of " + r.getParent(), e);
+                }
+            }
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RotationCursor.class.getName());
+}
@@ -0,0 +1,101 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import com.google.common.collect.MapMaker;
+import hudson.model.Job;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Makes sure only one rotation runs per job at a time, without losing requests.
+ *
+ * A request that arrives while a rotation of the same job is running marks the job dirty,
+ * and the running rotation does exactly one more pass once it is done. Jobs do not contend
+ * with each other.
+ */
+final class RotationGuard {
+
+    private static final int IDLE = 0;
+    private static final int RUNNING = 1;
+    private static final int DIRTY = 2;
+
+    private static final ConcurrentMap<Job<?,?>,AtomicInteger> states = new MapMaker().weakKeys().makeMap();
+
+    private RotationGuard() {}
+
+    private static AtomicInteger stateOf(Job<?,?> job) {
+        AtomicInteger s = states.get(job);
+        if ( s == null ) {
+            AtomicInteger prev = states.putIfAbsent(job, s = new AtomicInteger(IDLE));
+            if ( prev != null ) s = prev;
+        }
+        return s;
+    }
+
+    /**
+     * Requests a rotation of the given job.
+     *
+     * @return true if the caller is to run it, false if a running rotation will pick it up
+     */
+    static boolean begin(Job<?,?> job) {
+        AtomicInteger s = stateOf(job);
+        while (true) {
+            switch (s.get()) {
+            case IDLE:
+                if ( s.compareAndSet(IDLE, RUNNING) ) return true;
+                break;
+            case RUNNING:
+                if ( s.compareAndSet(RUNNING, DIRTY) ) return false;
+                break;
+            default:
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Called by the caller of a successful {@link #begin(Job)} after each pass.
+     *
+     * @return true if another pass was requested in the meantime and is to be run now
+     */
+    static boolean again(Job<?,?> job) {
+        AtomicInteger s = stateOf(job);
+        while (true) {
+            if ( s.compareAndSet(RUNNING, IDLE) ) return false;
+            if ( s.compareAndSet(DIRTY, RUNNING) ) return true;
+        }
+    }
+
+    /**
+     * Gives up the rotation of the given job after a failure.
+     *
+     * @return true if another pass was requested in the meantime, which the caller is to arrange for,
+     *     since nobody else will
+     */
+    static boolean abort(Job<?,?> job) {
+        return stateOf(job).getAndSet(IDLE) == DIRTY;
+    }
+}
@@ -0,0 +1,403 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Write-ahead log of the removals, purges, log compressions and artifact packing {@link LogRotator} is about to do to a job.
+ *
+ * Before a plan is carried out, what it is going to do is appended to a file next to the job
+ * configuration and synced to disk. Each completed step is appended as well, synced in batches only,
+ * since doing a step twice is harmless. Once nothing is outstanding the file is deleted, and once it is mostly
+ * completed steps it is rewritten with the outstanding ones only. If the controller
+ * stops half way, the outstanding steps are carried out after it starts again, without planning anew;
+ * that includes removing the directories of builds that were deleted only partly and no longer load.
+ */
+final class RotationJournal {
+
+    static final String FILE_NAME = "upstreamkeep-logrotator-journal.bin";
+
+    private static final int MAGIC = 0x554b4a31;
+
+    private static final byte INTENT = 1;
+    private static final byte DONE = 2;
+
+    /**
+     * Completed steps written before the file is synced.
+     */
+    private static final int SYNC_BATCH = Integer.getInteger(RotationJournal.class.getName() + ".syncBatch", 100);
+
+    /**
+     * A step to take.
+     */
+    private static final class Step {
+        final int number;
+        final DeletionQueue.Action action;
+
+        /**
+         * Name of the build directory, for cleaning up after a build that no longer loads.
+         */
+        final String dir;
+
+        Step(int number, DeletionQueue.Action action, String dir) {
+            this.number = number;
+            this.action = action;
+            this.dir = dir;
+        }
+    }
+
+    private final Job<?,?> job;
+    private final File file;
+
+    /**
+     * The steps not done yet, by {@link #key(int, DeletionQueue.Action)}.
+     */
+    private final Map<Long,Step> outstanding = new LinkedHashMap<Long,Step>();
+
+    private FileOutputStream fos;
+    private DataOutputStream out;
+    private int unsynced;
+
+    /**
+     * Records in the file no longer needed, see {@link #compactIfNeeded()}.
+     */
+    private int garbage;
+
+    private RotationJournal(Job<?,?> job) {
+        this.job = job;
+        this.file = new File(job.getRootDir(), FILE_NAME);
+    }
+
+    private static final Map<Job<?,?>,RotationJournal> journals = new WeakHashMap<Job<?,?>,RotationJournal>();
+
+    /**
+     * Gets the journal of the given job, reading what is outstanding from disk if necessary.
+     */
+    static RotationJournal of(Job<?,?> job) {
+        synchronized (journals) {
+            RotationJournal j = journals.get(job);
+            if ( j == null ) {
+                j = new RotationJournal(job);
+                File tmp = j.tmp();
+                // a compaction stopped between deleting the file and renaming its replacement
+                if ( !j.file.exists() && tmp.exists() && !tmp.renameTo(j.file) ) LOGGER.log(WARNING, "Failed to rename {0}", tmp);
+                if ( j.file.exists() ) j.read();
+                journals.put(job, j);
+            }
+            return j;
+        }
+    }
+
+    private File tmp() {
+        return new File(file.getPath() + ".tmp");
+    }
+
+    private static long key(int number, DeletionQueue.Action action) {
+        return ((long) number << 8) | action.ordinal();
+    }
+
+    private void read() {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if ( in.readInt() != MAGIC ) throw new IOException("Not a journal file");
+                while ( true ) {
+                    int type = in.read();
+                    if ( type == -1 ) break;
+                    try {
+                        int ordinal = in.readByte();
+                        if ( ordinal < 0 || ordinal >= DeletionQueue.Action.values().length ) throw new IOException("Unknown action " + ordinal);
+                        DeletionQueue.Action action = DeletionQueue.Action.values()[ordinal];
+                        int number = in.readInt();
+                        if ( type == INTENT ) {
+                            if ( outstanding.put(key(number, action), new Step(number, action, in.readUTF())) != null ) garbage++;
+                        } else if ( type == DONE ) {
+                            garbage += outstanding.remove(key(number, action)) != null ? 2 : 1;
+                        } else {
+                            throw new IOException("Unknown record type " + type);
+                        }
+                    } catch (EOFException e) {
+                        // the controller stopped while appending; that step was not under way yet
+                        break;
+                    }
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to read " + file + ", the next rotation will start over", e);
+            outstanding.clear();
+            garbage = 0;
+        }
+    }
+
+    /**
+     * Records what is about to be done, and makes sure it is on disk before returning.
+     */
+    synchronized void intend(List<Run<?,?>> deletes, List<Run<?,?>> purges, List<Run<?,?>> compresses, List<Run<?,?>> packs) throws IOException {
+        if ( deletes.isEmpty() && purges.isEmpty() && compresses.isEmpty() && packs.isEmpty() ) return;
+        open();
+        for ( Run<?,?> r : deletes ) {
+            intend(r, DeletionQueue.Action.DELETE);
+        }
+        for ( Run<?,?> r : purges ) {
+            intend(r, DeletionQueue.Action.DELETE_ARTIFACTS);
+        }
+        for ( Run<?,?> r : compresses ) {
+            intend(r, DeletionQueue.Action.COMPRESS_LOG);
+        }
+        for ( Run<?,?> r : packs ) {
+            intend(r, DeletionQueue.Action.PACK_ARTIFACTS);
+        }
+        sync();
+    }
+
+    private void intend(Run<?,?> r, DeletionQueue.Action action) throws IOException {
+        Step s = new Step(r.getNumber(), action, r.getRootDir().getName());
+        if ( outstanding.put(key(s.number, action), s) != null ) garbage++;
+        write(out, s);
+    }
+
+    private static void write(DataOutputStream out, Step s) throws IOException {
+        out.writeByte(INTENT);
+        out.writeByte(s.action.ordinal());
+        out.writeInt(s.number);
+        out.writeUTF(s.dir);
+    }
+
+    /**
+     * Records that a step is done, or no longer needed, and deletes the file once nothing is outstanding.
+     */
+    synchronized void done(int number, DeletionQueue.Action action) throws IOException {
+        if ( outstanding.remove(key(number, action)) == null ) return;
+        if ( outstanding.isEmpty() ) {
+            close();
+            tmp().delete();
+            if ( !file.delete() && file.exists() ) throw new IOException("Failed to delete " + file);
+            return;
+        }
+        open();
+        out.writeByte(DONE);
+        out.writeByte(action.ordinal());
+        out.writeInt(number);
+        garbage += 2;
+        if ( ++unsynced >= SYNC_BATCH ) sync();
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if ( garbage > outstanding.size() && garbage > 100 ) compact();
+    }
+
+    /**
+     * Rewrites the file with only the outstanding steps, e.g. when some of them keep failing.
+     */
+    private void compact() throws IOException {
+        close();
+        File tmp = tmp();
+        FileOutputStream f = new FileOutputStream(tmp);
+        DataOutputStream o = new DataOutputStream(new BufferedOutputStream(f));
+        try {
+            o.writeInt(MAGIC);
+            for ( Step s : outstanding.values() ) {
+                write(o, s);
+            }
+            o.flush();
+            f.getFD().sync();
+        } finally {
+            o.close();
+        }
+        if ( !tmp.renameTo(file) ) {
+            // not atomic on Windows; of() picks up the replacement if we stop in between
+            file.delete();
+            if ( !tmp.renameTo(file) ) throw new IOException("Failed to replace " + file);
+        }
+        garbage = 0;
+        LOGGER.log(FINE, "Compacted {0} to {1} outstanding steps", new Object[] {file, outstanding.size()});
+    }
+
+    /**
+     * Records the step for the given build as done, if the job has a journal.
+     */
+    static void done(Run<?,?> r, DeletionQueue.Action action) {
+        RotationJournal j;
+        synchronized (journals) {
+            j = journals.get(r.getParent());
+        }
+        if ( j == null ) return;
+        try {
+            j.done(r.getNumber(), action);
+        } catch (IOException e) {
+            LOGGER.log(WARNING, "Failed to update the journal of " + r.getParent(), e);
+        }
+    }
+
+    synchronized boolean isEmpty() {
+        return outstanding.isEmpty();
+    }
+
+    private void open() throws IOException {
+        if ( out != null ) return;
+        if ( !file.exists() ) {
+            // start afresh, with only what is outstanding
+            file.getParentFile().mkdirs();
+            fos = new FileOutputStream(file);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(MAGIC);
+            for ( Step s : outstanding.values() ) {
+                write(out, s);
+            }
+            garbage = 0;
+        } else {
+            fos = new FileOutputStream(file, true);
+            out = new DataOutputStream(new BufferedOutputStream(fos));
+        }
+    }
+
+    private void sync() throws IOException {
+        out.flush();
+        fos.getFD().sync();
+        unsynced = 0;
+    }
+
+    private void close() throws IOException {
+        if ( out == null ) return;
+        try {
+            out.close();
+        } finally {
+            out = null;
+            fos = null;
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Carries out whatever is outstanding, e.g. after a restart.
+     *
+     * Steps the {@link DeletionQueue} still has queued or running are left to it. A step that fails stays
+     * outstanding, to be tried again by the next pass.
+     *
+     * @param trash whether to go through the {@link Trash}
+     */
+    void resume(boolean trash) throws IOException {
+        List<Step> steps;
+        synchronized (this) {
+            steps = new ArrayList<Step>(outstanding.values());
+        }
+        for ( Step s : steps ) {
+            if ( DeletionQueue.isPending(new BuildKey(job.getFullName(), s.number), s.action) ) continue;
+            try {
+                resume(s, trash);
+            } catch (IOException e) {
+                LOGGER.log(WARNING, "Failed to resume " + s.action + " of #" + s.number + " of " + job, e);
+                continue;
+            }
+            done(s.number, s.action);
+        }
+    }
+
+    private void resume(Step s, boolean trash) throws IOException {
+        Run<?,?> r = job.getBuildByNumber(s.number);
+        if ( r != null ) {
+            if ( !s.action.skips(r) ) {
+                LOGGER.log(FINE, "Resuming {0} of {1}", new Object[] {s.action, r});
+                s.action.perform(r, trash);
+            }
+        } else if ( s.action == DeletionQueue.Action.DELETE ) {
+            // Run.delete() renames the directory to .NAME before deleting it
+            for ( String name : new String[] {s.dir, "." + s.dir} ) {
+                File dir = new File(job.getBuildDir(), name);
+                if ( dir.exists() ) {
+                    LOGGER.log(INFO, "Removing {0}, left behind by an interrupted rotation", dir);
+                    Util.deleteRecursive(dir);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finishes the rotations that were under way when the controller stopped, by rotating the jobs again.
+     * The cursor has already moved past what was planned, so that is not planned again.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resumeAll() {
+        for ( final Job<?,?> job : Jenkins.getInstance().getAllItems(Job.class) ) {
+            if ( !new File(job.getRootDir(), FILE_NAME).exists() && !new File(job.getRootDir(), FILE_NAME + ".tmp").exists() ) continue;
+            if ( !(job.getBuildDiscarder() instanceof LogRotator) ) {
+                LOGGER.log(INFO, "{0} no longer uses the log rotation, dropping its journal", job);
+                of(job).drop();
+                continue;
+            }
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    try {
+                        job.getBuildDiscarder().perform(job);
+                    } catch (IOException e) {
+                        LOGGER.log(WARNING, "Failed to resume the rotation of " + job, e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+        }
+    }
+
+    private synchronized void drop() {
+        outstanding.clear();
+        try {
+            close();
+        } catch (IOException e) {
+            LOGGER.log(FINE, "Failed to close " + file, e);
+        }
+        file.delete();
+        tmp().delete();
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RotationJournal.class.getName());
+}
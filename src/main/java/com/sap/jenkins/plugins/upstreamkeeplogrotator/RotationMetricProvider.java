@@ -0,0 +1,128 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricSet;
+import hudson.Extension;
+import jenkins.metrics.api.MetricProvider;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Publishes the controller-wide {@link RotationStats} through the Metrics plugin, if it is installed.
+ */
+@Extension(optional = true)
+public class RotationMetricProvider extends MetricProvider {
+
+    private static final String PREFIX = "upstreamkeep-logrotator.";
+
+    private final MetricSet set = new MetricSet() {
+        public Map<String,Metric> getMetrics() {
+            final RotationStats s = RotationStats.total();
+            Map<String,Metric> m = new HashMap<String,Metric>();
+            m.put(PREFIX + "passes", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getPasses();
+                }
+            });
+            m.put(PREFIX + "pass.millis", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getPassMillis();
+                }
+            });
+            m.put(PREFIX + "pass.last.millis", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getLastPassMillis();
+                }
+            });
+            m.put(PREFIX + "runs.examined", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getRunsExamined();
+                }
+            });
+            m.put(PREFIX + "runs.deleted", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getRunsDeleted();
+                }
+            });
+            m.put(PREFIX + "runs.purged", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getRunsPurged();
+                }
+            });
+            m.put(PREFIX + "logs.compressed", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getLogsCompressed();
+                }
+            });
+            m.put(PREFIX + "bulk.requests", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getBulkDeleteRequests();
+                }
+            });
+            m.put(PREFIX + "artifacts.packed", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getArtifactsPacked();
+                }
+            });
+            m.put(PREFIX + "upstream.millis", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getUpstreamCheckMillis();
+                }
+            });
+            m.put(PREFIX + "bytes.freed", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getBytesFreed();
+                }
+            });
+            m.put(PREFIX + "runs.throttled", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getRunsThrottled();
+                }
+            });
+            m.put(PREFIX + "throttled.millis", new Gauge<Long>() {
+                public Long getValue() {
+                    return s.getThrottledMillis();
+                }
+            });
+            for ( final HoldReason r : HoldReason.values() ) {
+                m.put(PREFIX + "holds." + r.name().toLowerCase(Locale.ENGLISH), new Gauge<Long>() {
+                    public Long getValue() {
+                        return s.getHolds(r);
+                    }
+                });
+            }
+            return m;
+        }
+    };
+
+    @Override
+    public MetricSet getMetricSet() {
+        return set;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Job;
+import hudson.model.RootAction;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes {@link RotationStats} at {@code rotationMetrics/api/json}.
+ */
+@Extension
+@ExportedBean
+public class RotationMetricsAction implements RootAction {
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Log Rotation Metrics";
+    }
+
+    public String getUrlName() {
+        return "rotationMetrics";
+    }
+
+    public Api getApi() {
+        Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+        return new Api(this);
+    }
+
+    /**
+     * The counters of the whole controller.
+     */
+    @Exported
+    public RotationStats getTotal() {
+        return RotationStats.total();
+    }
+
+    /**
+     * The counters of each job rotated since the controller started.
+     */
+    @Exported
+    public List<JobStats> getJobs() {
+        List<JobStats> jobs = new ArrayList<JobStats>();
+        for ( Map.Entry<Job<?,?>,RotationStats> e : RotationStats.jobs().entrySet() ) {
+            jobs.add(new JobStats(e.getKey().getFullName(), e.getValue()));
+        }
+        return jobs;
+    }
+
+    @ExportedBean(defaultVisibility = 2)
+    public static final class JobStats {
+        private final String name;
+        private final RotationStats stats;
+
+        JobStats(String name, RotationStats stats) {
+            this.name = name;
+            this.stats = stats;
+        }
+
+        @Exported
+        public String getName() {
+            return name;
+        }
+
+        @Exported(inline = true)
+        public RotationStats getStats() {
+            return stats;
+        }
+    }
+}
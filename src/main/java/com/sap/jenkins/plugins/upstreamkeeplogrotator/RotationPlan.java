@@ -0,0 +1,245 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Job;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a {@link LogRotator} pass over a job is going to do: which builds to remove, which builds to purge of
+ * their artifacts, which builds to compress the logs of, which builds to pack the artifacts of, and which builds
+ * the policy would remove but that are kept, each with the reason why.
+ *
+ * Computing a plan has no effect on the job. Plans are applied by {@link #execute()}.
+ *
+ * @see RotationPlanner
+ */
+@ExportedBean
+public final class RotationPlan {
+
+    /**
+     * The part of the policy that selects a build for removal (purging).
+     */
+    public enum Rule {
+        NUM_TO_KEEP, AGE, BUDGET, ARTIFACT_NUM_TO_KEEP, ARTIFACT_AGE, ARTIFACT_BUDGET, LOG_AGE, ARTIFACT_PACK_NUM_TO_KEEP, ARTIFACT_PACK_AGE
+    }
+
+    /**
+     * A build and the reason it is listed.
+     */
+    @ExportedBean(defaultVisibility = 2)
+    public static final class Entry {
+        private final int number;
+        final Enum<?> reason;
+
+        Entry(int number, Enum<?> reason) {
+            this.number = number;
+            this.reason = reason;
+        }
+
+        @Exported
+        public int getNumber() {
+            return number;
+        }
+
+        /**
+         * A {@link Rule} for removals and purges, a {@link HoldReason} for holds.
+         */
+        @Exported
+        public String getReason() {
+            return reason.name();
+        }
+
+        @Override
+        public String toString() {
+            return "#" + number + " (" + reason + ")";
+        }
+    }
+
+    private final transient LogRotator policy;
+    private final transient Job<?,?> job;
+
+    private final List<Entry> deletes = new ArrayList<Entry>();
+    private final List<Entry> purges = new ArrayList<Entry>();
+    private final List<Entry> holds = new ArrayList<Entry>();
+    private final List<Entry> compresses = new ArrayList<Entry>();
+    private final List<Entry> packs = new ArrayList<Entry>();
+
+    private final Set<Integer> deleted = new HashSet<Integer>();
+    private final Set<Integer> purged = new HashSet<Integer>();
+    private final Set<Integer> held = new HashSet<Integer>();
+
+    /**
+     * What to record in the {@link RotationCursor} once the plan has been executed, if the age rules apply.
+     */
+    RotationCursor.Changes cursorChanges;
+
+    /**
+     * Statistics of the planning, for {@link RotationStats}.
+     */
+    int examined;
+    int tooNew;
+    long upstreamNanos;
+    long planNanos;
+
+    RotationPlan(LogRotator policy, Job<?,?> job) {
+        this.policy = policy;
+        this.job = job;
+    }
+
+    void delete(int number, Rule rule) {
+        if ( deleted.add(number) ) deletes.add(new Entry(number, rule));
+    }
+
+    void purge(int number, Rule rule) {
+        if ( !deleted.contains(number) && purged.add(number) ) purges.add(new Entry(number, rule));
+    }
+
+    void hold(int number, HoldReason reason) {
+        if ( held.add(number) ) holds.add(new Entry(number, reason));
+    }
+
+    void compress(int number) {
+        if ( !deleted.contains(number) ) compresses.add(new Entry(number, Rule.LOG_AGE));
+    }
+
+    void pack(int number, Rule rule) {
+        if ( !deleted.contains(number) && !purged.contains(number) ) packs.add(new Entry(number, rule));
+    }
+
+    boolean isDeleted(int number) {
+        return deleted.contains(number);
+    }
+
+    boolean isPurged(int number) {
+        return purged.contains(number);
+    }
+
+    LogRotator getPolicy() {
+        return policy;
+    }
+
+    Job<?,?> getJob() {
+        return job;
+    }
+
+    @Exported(name = "job")
+    public String getJobName() {
+        return job.getFullName();
+    }
+
+    /**
+     * Builds to remove.
+     */
+    @Exported
+    public List<Entry> getDeletes() {
+        return Collections.unmodifiableList(deletes);
+    }
+
+    /**
+     * Builds to purge of their artifacts.
+     */
+    @Exported
+    public List<Entry> getPurges() {
+        return Collections.unmodifiableList(purges);
+    }
+
+    /**
+     * Builds the policy selects, but that are kept anyway.
+     */
+    @Exported
+    public List<Entry> getHolds() {
+        return Collections.unmodifiableList(holds);
+    }
+
+    /**
+     * Builds to compress the log of.
+     */
+    @Exported
+    public List<Entry> getCompresses() {
+        return Collections.unmodifiableList(compresses);
+    }
+
+    /**
+     * Builds to pack the artifacts of.
+     */
+    @Exported
+    public List<Entry> getPacks() {
+        return Collections.unmodifiableList(packs);
+    }
+
+    public boolean isEmpty() {
+        return deletes.isEmpty() && purges.isEmpty() && compresses.isEmpty() && packs.isEmpty();
+    }
+
+    /**
+     * Applies this plan, unless a rotation of the job is already running.
+     */
+    public void execute() throws IOException, InterruptedException {
+        policy.execute(job, this);
+    }
+
+    /**
+     * Applies several plans in one go.
+     */
+    public static void executeAll(Iterable<RotationPlan> plans) throws IOException, InterruptedException {
+        for ( RotationPlan p : plans ) {
+            p.execute();
+        }
+    }
+
+    void print(PrintStream out) {
+        out.println(getJobName() + ": " + deletes.size() + " to remove, " + purges.size() + " to purge, "
+                + compresses.size() + " to compress, " + packs.size() + " to pack, " + holds.size() + " held");
+        for ( Entry e : deletes ) {
+            out.println("  remove " + e);
+        }
+        for ( Entry e : purges ) {
+            out.println("  purge  " + e);
+        }
+        for ( Entry e : compresses ) {
+            out.println("  gzip   " + e);
+        }
+        for ( Entry e : packs ) {
+            out.println("  pack   " + e);
+        }
+        for ( Entry e : holds ) {
+            out.println("  keep   " + e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RotationPlan[" + getJobName() + ": remove " + deletes + ", purge " + purges + ", compress " + compresses + ", pack " + packs + ", keep " + holds + "]";
+    }
+}
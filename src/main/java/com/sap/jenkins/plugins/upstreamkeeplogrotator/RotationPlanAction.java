@@ -0,0 +1,82 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.model.Action;
+import hudson.model.Api;
+import hudson.model.Item;
+import hudson.model.Job;
+import jenkins.model.TransientActionFactory;
+import org.kohsuke.stapler.HttpResponses;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Exposes the {@link RotationPlan} of a job at {@code job/NAME/rotationPlan/api/json}, as a dry run of {@link LogRotator}.
+ */
+public class RotationPlanAction implements Action {
+
+    private final Job<?,?> job;
+
+    public RotationPlanAction(Job<?,?> job) {
+        this.job = job;
+    }
+
+    public String getIconFileName() {
+        return null;
+    }
+
+    public String getDisplayName() {
+        return "Rotation Plan";
+    }
+
+    public String getUrlName() {
+        return "rotationPlan";
+    }
+
+    /**
+     * Computes the plan; this loads as many builds as a real rotation pass would.
+     */
+    public Api getApi() {
+        job.checkPermission(Item.CONFIGURE);
+        if ( !(job.getBuildDiscarder() instanceof LogRotator) ) throw HttpResponses.notFound();
+        return new Api(((LogRotator) job.getBuildDiscarder()).plan(job));
+    }
+
+    @Extension
+    public static final class Factory extends TransientActionFactory<Job> {
+        @Override
+        public Class<Job> type() {
+            return Job.class;
+        }
+
+        @Override
+        public Collection<? extends Action> createFor(Job target) {
+            if ( !(target.getBuildDiscarder() instanceof LogRotator) ) return Collections.emptySet();
+            return Collections.singleton(new RotationPlanAction(target));
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.cli.CLICommand;
+import hudson.model.Item;
+import hudson.model.Job;
+import jenkins.model.Jenkins;
+import org.kohsuke.args4j.Argument;
+import org.kohsuke.args4j.Option;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Prints the {@link RotationPlan}s of the given jobs, and optionally applies them all together.
+ */
+@Extension
+public class RotationPlanCommand extends CLICommand {
+
+    @Argument(metaVar = "JOB", usage = "Full names of the jobs to plan the log rotation for", required = true, multiValued = true)
+    public List<String> jobs = new ArrayList<String>();
+
+    @Option(name = "--execute", usage = "Apply the plans after printing them")
+    public boolean execute;
+
+    @Override
+    public String getShortDescription() {
+        return "Shows what Log Rotation Extended would remove from the given jobs";
+    }
+
+    @Override
+    protected int run() throws Exception {
+        Jenkins jenkins = Jenkins.getInstance();
+        List<RotationPlan> plans = new ArrayList<RotationPlan>();
+        for ( String name : jobs ) {
+            Job<?,?> job = jenkins.getItemByFullName(name, Job.class);
+            if ( job == null ) {
+                stderr.println("No such job: " + name);
+                return 3;
+            }
+            job.checkPermission(Item.CONFIGURE);
+            if ( !(job.getBuildDiscarder() instanceof LogRotator) ) {
+                stderr.println(name + " does not use Log Rotation Extended");
+                return 3;
+            }
+            plans.add(((LogRotator) job.getBuildDiscarder()).plan(job));
+        }
+        for ( RotationPlan plan : plans ) {
+            plan.print(stdout);
+        }
+        if ( execute ) {
+            RotationPlan.executeAll(plans);
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,606 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Run;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Decides what a {@link LogRotator} does to a job, without touching the job.
+ *
+ * Decisions are made from the {@link BuildIndex}; a build record is only loaded when the index
+ * cannot answer, e.g. to follow the upstream causes of a build further up the chain.
+ *
+ * @see RotationPlan
+ */
+final class RotationPlanner {
+
+    private final LogRotator policy;
+    private final Job<?,?> job;
+    private final BuildIndex index;
+    private final boolean dryRun;
+    private final RotationPlan plan;
+
+    // always keep the last successful and the last stable builds
+    private final int lsb;
+    private final int lstb;
+
+    private final long buildRetention;
+    private final long artifactRetention;
+    private final long logRetention;
+    private final long packRetention;
+
+    /**
+     * Builds started before these are old enough to be removed (purged).
+     */
+    private final long buildCutoff;
+    private final long artifactCutoff;
+    private final long logCutoff;
+    private final long packCutoff;
+
+    private final int numToKeep;
+    private final int artifactNumToKeep;
+    private final int packNumToKeep;
+    private final long buildBudget;
+    private final long artifactBudget;
+
+    /**
+     * State of the age rules during a pass: where the previous passes got to, the held builds
+     * to revisit that the walk has not come across yet, and the lowest builds found too new.
+     */
+    private RotationCursor.Changes changes;
+    private int buildCursor;
+    private int artifactCursor;
+    private int logCursor;
+    private final Set<Integer> revisits = new TreeSet<Integer>();
+    private int lowestTooNewForBuild = Integer.MAX_VALUE;
+    private int lowestTooNewForArtifacts = Integer.MAX_VALUE;
+    private int lowestTooNewForLog = Integer.MAX_VALUE;
+
+    private final Budgeted budgeted;
+
+    /**
+     * Upstream builds that no longer exist, to the ancestor holding their downstream builds, or null.
+     * Downstream builds usually share their ancestors, so each chain is followed once per pass.
+     */
+    private final Map<BuildKey,BuildKey> ancestors = new HashMap<BuildKey,BuildKey>();
+
+    RotationPlanner(LogRotator policy, Job<?,?> job) {
+        this(policy, job, false);
+    }
+
+    /**
+     * @param dryRun if true, only plan: load nothing to keep, and register no holds
+     */
+    RotationPlanner(LogRotator policy, Job<?,?> job, boolean dryRun) {
+        this.policy = policy;
+        this.job = job;
+        this.dryRun = dryRun;
+        this.index = dryRun ? BuildIndex.peek(job) : BuildIndex.of(job);
+        this.plan = new RotationPlan(policy, job);
+        this.lsb = numberOf(job.getLastSuccessfulBuild());
+        this.lstb = numberOf(job.getLastStableBuild());
+        this.buildRetention = policy.getBuildRetention();
+        this.artifactRetention = policy.getArtifactRetention();
+        this.logRetention = policy.getLogRetention();
+        this.packRetention = policy.getArtifactPackRetention();
+        long now = System.currentTimeMillis();
+        this.buildCutoff = now - buildRetention;
+        this.artifactCutoff = now - artifactRetention;
+        this.logCutoff = now - logRetention;
+        this.packCutoff = now - packRetention;
+        this.numToKeep = policy.getNumToKeep();
+        this.artifactNumToKeep = policy.getArtifactNumToKeep();
+        this.packNumToKeep = policy.getArtifactPackNumToKeep();
+        this.buildBudget = policy.getBuildBudgetBytes();
+        this.artifactBudget = policy.getArtifactBudgetBytes();
+        this.budgeted = new Budgeted();
+    }
+
+    private static int numberOf(Run<?,?> r) {
+        return r != null ? r.getNumber() : -1;
+    }
+
+    private Candidate candidate(BuildIndex.Entry e) {
+        if ( e == null ) return null;
+        plan.examined++;
+        return new Candidate(job, e);
+    }
+
+    /**
+     * Plans a complete pass over the job.
+     *
+     * All rules are applied in a single walk from the newest build down, so that every build is
+     * looked at once and its keep predicates are evaluated at most once, see {@link #visit(BuildIndex.Entry, int)}.
+     * Only the disk budgets need the outcome of the other rules, and work from what the walk collected.
+     */
+    RotationPlan plan() {
+        long start = System.nanoTime();
+        boolean byCount = numToKeep!=-1 || artifactNumToKeep!=-1;
+        boolean byAge = buildRetention!=-1 || artifactRetention!=-1 || logRetention!=-1;
+        boolean byBudget = buildBudget!=-1 || artifactBudget!=-1;
+        // packed builds are told apart by their mark in the index, not by a cursor
+        boolean byPack = packNumToKeep!=-1 || packRetention!=-1;
+
+        // with only age rules, nothing up to the cursors needs a look, except the holds to revisit,
+        // and nothing after the newest build that is old enough
+        BuildIndex.Entry first = index.newest();
+        int stop = 0;
+        if ( byAge ) {
+            startAge();
+            if ( !byCount && !byBudget && !byPack ) {
+                stop = Integer.MAX_VALUE;
+                if ( buildRetention!=-1 ) stop = Math.min(stop, buildCursor);
+                if ( artifactRetention!=-1 ) stop = Math.min(stop, artifactCursor);
+                if ( logRetention!=-1 ) stop = Math.min(stop, logCursor);
+                first = newestOldEnough();
+            }
+        }
+
+        int position = 0;
+        for ( BuildIndex.Entry e = first; e != null && e.number > stop; e = index.older(e.number), position++ ) {
+            Candidate c = visit(e, position);
+            if ( byBudget ) budgeted.add(e, c);
+        }
+
+        if ( byAge ) {
+            // held builds below where the walk stopped
+            for ( int n : new ArrayList<Integer>(revisits) ) {
+                BuildIndex.Entry e = index.get(n);
+                if ( e == null ) {
+                    changes.forget(n);
+                } else {
+                    LOGGER.log(FINEST, "Revisiting {0}", e.number);
+                    visit(e, -1);
+                }
+            }
+            finishAge();
+        }
+        if ( byBudget ) {
+            planByBudget();
+        }
+        plan.planNanos = System.nanoTime() - start;
+        return plan;
+    }
+
+    private void startAge() {
+        String agePolicy = policy.getAgePolicy();
+        RotationCursor cursor = dryRun ? RotationCursor.peek(job) : RotationCursor.of(job);
+        changes = new RotationCursor.Changes(agePolicy);
+        plan.cursorChanges = changes;
+        if ( cursor.matches(agePolicy) ) {
+            buildCursor = cursor.getBuildCursor();
+            artifactCursor = cursor.getArtifactCursor();
+            logCursor = cursor.getLogCursor();
+            // the builds we kept last time, where the reason for keeping them may have gone away
+            revisits.addAll(cursor.getHoldsToRevisit(lsb, lstb));
+        }
+    }
+
+    /**
+     * Finds the newest build that some age rule may select, by a binary search of the index.
+     * The builds after it are left for a later pass; the cursors never move past them.
+     */
+    private BuildIndex.Entry newestOldEnough() {
+        BuildIndex.Entry e = null;
+        if ( buildRetention!=-1 ) e = index.newestStartedBefore(buildCutoff);
+        if ( artifactRetention!=-1 ) {
+            BuildIndex.Entry a = index.newestStartedBefore(artifactCutoff);
+            if ( e == null || a != null && a.number > e.number ) e = a;
+        }
+        if ( logRetention!=-1 ) {
+            BuildIndex.Entry l = index.newestStartedBefore(logCutoff);
+            if ( e == null || l != null && l.number > e.number ) e = l;
+        }
+        LOGGER.log(FINEST, "Newest build old enough for {0} is {1}", new Object[] {job, e != null ? e.number : null});
+        return e;
+    }
+
+    /**
+     * Keeps the cursors below any build that was too new, in case build times are not in the order of the build numbers.
+     */
+    private void finishAge() {
+        changes.buildCursor = Math.min(changes.buildCursor, lowestTooNewForBuild - 1);
+        changes.artifactCursor = Math.min(changes.artifactCursor, lowestTooNewForArtifacts - 1);
+        changes.logCursor = Math.min(changes.logCursor, lowestTooNewForLog - 1);
+    }
+
+    /**
+     * Applies every rule that selects the given build, and notes the outcome of the age rules for the cursor.
+     *
+     * @param position how many newer builds there are, or -1 if not known, in which case the count rules are not applied
+     * @return the build if any rule selected it, null otherwise
+     */
+    private Candidate visit(BuildIndex.Entry e, int position) {
+        int n = e.number;
+        boolean revisit = revisits.remove(n);
+
+        boolean buildAge = buildRetention!=-1 && (n > buildCursor || revisit);
+        boolean artifactAge = artifactRetention!=-1 && (n > artifactCursor || revisit);
+        boolean buildTooNew = buildAge && e.timestamp >= buildCutoff;
+        boolean artifactTooNew = artifactAge && e.timestamp >= artifactCutoff;
+        if ( buildTooNew ) lowestTooNewForBuild = Math.min(lowestTooNewForBuild, n);
+        if ( artifactTooNew ) lowestTooNewForArtifacts = Math.min(lowestTooNewForArtifacts, n);
+        if ( buildTooNew || artifactTooNew ) plan.tooNew++;
+        buildAge &= !buildTooNew;
+        artifactAge &= !artifactTooNew;
+
+        // compressing a log is harmless, so nothing holds it up but the build still running
+        boolean logAge = logRetention!=-1 && n > logCursor;
+        if ( logAge && (e.timestamp >= logCutoff || e.building && new Candidate(job, e).isBuilding()) ) {
+            lowestTooNewForLog = Math.min(lowestTooNewForLog, n);
+            logAge = false;
+        }
+
+        // packing loses nothing either
+        RotationPlan.Rule packRule = null;
+        if ( !e.packed && e.artifactsSize != 0 && !e.building ) {
+            if ( position >= 0 && packNumToKeep!=-1 && packNumToKeep <= position ) packRule = RotationPlan.Rule.ARTIFACT_PACK_NUM_TO_KEEP;
+            else if ( packRetention!=-1 && e.timestamp < packCutoff ) packRule = RotationPlan.Rule.ARTIFACT_PACK_AGE;
+        }
+
+        RotationPlan.Rule buildRule = null;
+        if ( position >= 0 && numToKeep!=-1 && numToKeep <= position ) buildRule = RotationPlan.Rule.NUM_TO_KEEP;
+        else if ( buildAge ) buildRule = RotationPlan.Rule.AGE;
+        RotationPlan.Rule artifactRule = null;
+        if ( position >= 0 && artifactNumToKeep!=-1 && artifactNumToKeep <= position ) artifactRule = RotationPlan.Rule.ARTIFACT_NUM_TO_KEEP;
+        else if ( artifactAge ) artifactRule = RotationPlan.Rule.ARTIFACT_AGE;
+        if ( buildRule == null && artifactRule == null ) {
+            if ( logAge ) compress(n);
+            if ( packRule != null ) pack(n, packRule);
+            return null;
+        }
+
+        Candidate c = candidate(e);
+        HoldReason hold = null;
+        if ( buildRule != null ) {
+            hold = keepRunReason(c);
+            if ( hold == null ) {
+                LOGGER.log(FINER, "{0} is to be removed", c);
+                plan.delete(n, buildRule);
+            } else {
+                plan.hold(n, hold);
+            }
+        }
+        if ( artifactRule != null && !plan.isDeleted(n) ) {
+            HoldReason artifactHold = keepRunArtifactsReason(c);
+            if ( artifactHold == null ) {
+                LOGGER.log(FINER, "{0} is to be purged of artifacts", c);
+                plan.purge(n, artifactRule);
+            } else if ( hold == null ) {
+                hold = artifactHold;
+                plan.hold(n, hold);
+            }
+        }
+
+        if ( logAge ) compress(n);
+        if ( packRule != null ) pack(n, packRule);
+        if ( buildAge ) changes.buildCursor = Math.max(changes.buildCursor, n);
+        if ( artifactAge ) changes.artifactCursor = Math.max(changes.artifactCursor, n);
+        if ( buildAge || artifactAge ) {
+            if ( hold != null && !plan.isDeleted(n) ) {
+                changes.hold(n, hold, hold == HoldReason.UPSTREAM ? holders(c, true) : null);
+            } else {
+                changes.forget(n);
+            }
+        }
+        return c;
+    }
+
+    private void compress(int n) {
+        if ( !plan.isDeleted(n) ) {
+            LOGGER.log(FINER, "The log of #{0} is to be compressed", n);
+            plan.compress(n);
+        }
+        changes.logCursor = Math.max(changes.logCursor, n);
+    }
+
+    private void pack(int n, RotationPlan.Rule rule) {
+        LOGGER.log(FINER, "The artifacts of #{0} are to be packed", n);
+        plan.pack(n, rule);
+    }
+
+    /**
+     * The sizes of the builds the walk left in place, newest first, for the disk budgets.
+     */
+    private final class Budgeted {
+        int count;
+        BuildIndex.Entry[] entries = new BuildIndex.Entry[64];
+        Candidate[] candidates = new Candidate[64];
+        long[] artifacts = new long[64];
+        long buildExcess = -buildBudget;
+        long artifactExcess = -artifactBudget;
+
+        void add(BuildIndex.Entry e, Candidate c) {
+            if ( plan.isDeleted(e.number) || e.size < 0 ) return;
+            if ( count == entries.length ) {
+                entries = Arrays.copyOf(entries, count * 2);
+                candidates = Arrays.copyOf(candidates, count * 2);
+                artifacts = Arrays.copyOf(artifacts, count * 2);
+            }
+            entries[count] = e;
+            candidates[count] = c;
+            artifacts[count] = plan.isPurged(e.number) ? 0 : e.artifactsSize;
+            buildExcess += e.size;
+            artifactExcess += artifacts[count];
+            count++;
+        }
+    }
+
+    /**
+     * Removes (purges) the oldest builds that may go, until what is left fits the budget.
+     * Only the sizes recorded by {@link BuildSize} are used; builds without one count as empty.
+     */
+    private void planByBudget() {
+        Budgeted b = budgeted;
+        for ( int i=b.count-1; i>=0; i-- ) {
+            boolean overBuildBudget = buildBudget!=-1 && b.buildExcess > 0;
+            boolean overArtifactBudget = artifactBudget!=-1 && b.artifactExcess > 0;
+            if ( !overBuildBudget && !overArtifactBudget ) break;
+            Candidate c = b.candidates[i] != null ? b.candidates[i] : candidate(b.entries[i]);
+            int n = c.getNumber();
+
+            if ( overBuildBudget ) {
+                HoldReason hold = keepRunReason(c);
+                if ( hold == null ) {
+                    LOGGER.log(FINER, "{0} is to be removed to fit the disk budget", c);
+                    plan.delete(n, RotationPlan.Rule.BUDGET);
+                    b.buildExcess -= b.entries[i].size;
+                    b.artifactExcess -= b.artifacts[i];
+                    continue;
+                }
+                plan.hold(n, hold);
+            }
+
+            if ( overArtifactBudget && b.artifacts[i] > 0 ) {
+                HoldReason hold = keepRunArtifactsReason(c);
+                if ( hold == null ) {
+                    LOGGER.log(FINER, "{0} is to be purged of artifacts to fit the disk budget", c);
+                    plan.purge(n, RotationPlan.Rule.ARTIFACT_BUDGET);
+                    b.buildExcess -= b.artifacts[i];
+                    b.artifactExcess -= b.artifacts[i];
+                } else {
+                    plan.hold(n, hold);
+                }
+            }
+        }
+    }
+
+    /**
+     * Plans only the given builds, e.g. after an upstream build holding them was deleted.
+     *
+     * @see UpstreamHoldIndex
+     */
+    RotationPlan plan(Collection<Integer> numbers) {
+        long start = System.nanoTime();
+        int buildBoundary = numToKeep!=-1 ? nthNewestNumber(numToKeep) : 0;
+        int artifactBoundary = artifactNumToKeep!=-1 ? nthNewestNumber(artifactNumToKeep) : 0;
+
+        for ( int n : numbers ) {
+            Candidate c = candidate(index.get(n));
+            if ( c == null ) continue;
+            boolean byCount = n < buildBoundary;
+            if ( byCount || buildRetention!=-1 && !tooNew(c, buildCutoff) ) {
+                HoldReason hold = keepRunReason(c);
+                if ( hold == null ) {
+                    LOGGER.log(FINER, "{0} is to be removed", c);
+                    plan.delete(n, byCount ? RotationPlan.Rule.NUM_TO_KEEP : RotationPlan.Rule.AGE);
+                    continue;
+                }
+                plan.hold(n, hold);
+            }
+            byCount = n < artifactBoundary;
+            if ( byCount || artifactRetention!=-1 && !tooNew(c, artifactCutoff) ) {
+                HoldReason hold = keepRunArtifactsReason(c);
+                if ( hold == null ) {
+                    LOGGER.log(FINER, "{0} is to be purged of artifacts", c);
+                    plan.purge(n, byCount ? RotationPlan.Rule.ARTIFACT_NUM_TO_KEEP : RotationPlan.Rule.ARTIFACT_AGE);
+                } else {
+                    plan.hold(n, hold);
+                }
+            }
+        }
+        plan.planNanos = System.nanoTime() - start;
+        return plan;
+    }
+
+    /**
+     * Returns the number of the n-th newest build of the job, so that exactly the builds
+     * with a lower number fall outside a count based retention of n builds.
+     * Returns 0 if the job has fewer than n builds.
+     */
+    private int nthNewestNumber(int n) {
+        if ( n <= 0 ) return Integer.MAX_VALUE;
+        BuildIndex.Entry e = index.newest();
+        for ( int i=1; e != null; i++, e = index.older(e.number) ) {
+            if ( i == n ) return e.number;
+        }
+        return 0;
+    }
+
+    /**
+     * Returns why the build must not be removed, or null if it may be.
+     * Evaluated once per build and pass.
+     */
+    private HoldReason keepRunReason(Candidate c) {
+        if ( !c.runVerdict ) {
+            c.runHold = computeKeepRunReason(c);
+            c.runVerdict = true;
+        }
+        return c.runHold;
+    }
+
+    /**
+     * Returns why the artifacts of the build must not be purged, or null if they may be.
+     * Evaluated once per build and pass.
+     */
+    private HoldReason keepRunArtifactsReason(Candidate c) {
+        if ( !c.artifactsVerdict ) {
+            c.artifactsHold = computeKeepRunArtifactsReason(c);
+            c.artifactsVerdict = true;
+        }
+        return c.artifactsHold;
+    }
+
+    private HoldReason computeKeepRunReason(Candidate c) {
+        HoldReason reason = keepCompleteRunReason(c);
+        if ( reason != null ) return reason;
+        if ( policy.isUpstreamKeep() && upstreamBuildsExist(c) ) {
+            LOGGER.log(FINEST, "{0} is not to be removed because an upstream build still exists", c);
+            return HoldReason.UPSTREAM;
+        }
+        return null;
+    }
+
+    private HoldReason computeKeepRunArtifactsReason(Candidate c) {
+        HoldReason reason = keepCompleteRunReason(c);
+        if ( reason != null ) return reason;
+        if ( policy.isUpstreamKeep() && policy.isUpstreamKeepArtifacts() && (c.runVerdict ? c.runHold == HoldReason.UPSTREAM : upstreamBuildsExist(c)) ) {
+            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because an upstream cause still exists", c);
+            return HoldReason.UPSTREAM;
+        }
+        return null;
+    }
+
+    private HoldReason keepCompleteRunReason(Candidate c) {
+        if (c.isKeepLog()) {
+            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s marked as a keeper", c);
+            return HoldReason.KEEP_LOG;
+        }
+        if (c.getNumber() == lsb) {
+            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s the last successful build", c);
+            return HoldReason.LAST_SUCCESSFUL;
+        }
+        if (c.getNumber() == lstb) {
+            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s the last stable build", c);
+            return HoldReason.LAST_STABLE;
+        }
+        if (c.isBuilding()) {
+            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s still building", c);
+            return HoldReason.BUILDING;
+        }
+        return null;
+    }
+
+    private boolean tooNew(Candidate c, long cutoff) {
+        if (c.getTimeInMillis() >= cutoff) {
+            LOGGER.log(FINEST, "{0} is not to be removed or purged of artifacts because it’s still new", c);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private boolean upstreamBuildsExist(Candidate c) {
+        long start = System.nanoTime();
+        try {
+            List<BuildKey> holders = holders(c, false);
+            if ( holders.isEmpty() ) return false;
+            // only an in-memory index, not part of the job
+            if ( !dryRun ) UpstreamHoldIndex.register(new BuildKey(job.getFullName(), c.getNumber()), holders);
+            return true;
+        } finally {
+            plan.upstreamNanos += System.nanoTime() - start;
+        }
+    }
+
+    /**
+     * Returns the upstream builds that hold the given build: those of its direct upstream causes that still exist,
+     * and with {@link LogRotator#isUpstreamKeepFingerprints()} those that produced an artifact it consumed.
+     * With {@link LogRotator#isUpstreamKeepTransitive()}, if none does, the first ancestors further up
+     * the cause chains that still exist, see {@link #holder(Cause.UpstreamCause)}.
+     *
+     * @param all whether to find all of them, or stop at the first
+     */
+    private List<BuildKey> holders(Candidate c, boolean all) {
+        List<BuildKey> holders = new ArrayList<BuildKey>();
+        for ( BuildKey u : c.getUpstream() ) {
+            if ( UpstreamBuildCache.exists(u.project, u.number) ) {
+                holders.add(u);
+                if ( !all ) return holders;
+            }
+        }
+        if ( policy.isUpstreamKeepFingerprints() ) {
+            for ( BuildKey p : c.getProducers() ) {
+                if ( UpstreamBuildCache.exists(p.project, p.number) && !holders.contains(p) ) {
+                    holders.add(p);
+                    if ( !all ) return holders;
+                }
+            }
+        }
+        if ( !holders.isEmpty() || !policy.isUpstreamKeepTransitive() || c.getUpstream().length == 0 ) return holders;
+
+        // the index only knows the direct causes; the chains are in the build record
+        Run<?,?> r = c.getRun();
+        if ( r == null ) return holders;
+        for ( Cause cause : r.getCauses() ) {
+            if ( cause instanceof Cause.UpstreamCause ) {
+                BuildKey holder = holder((Cause.UpstreamCause)cause);
+                if ( holder != null ) {
+                    holders.add(holder);
+                    if ( !all ) return holders;
+                }
+            }
+        }
+        return holders;
+    }
+
+    /**
+     * Returns the upstream build the cause points to, if it still exists.
+     * With {@link LogRotator#isUpstreamKeepTransitive()}, returns the first ancestor further up the
+     * cause chain that still exists otherwise, or null if none does.
+     */
+    private BuildKey holder(Cause.UpstreamCause c) {
+        BuildKey key = BuildKey.of(c);
+        if ( UpstreamBuildCache.exists(key.project, key.number) ) return key;
+        if ( !policy.isUpstreamKeepTransitive() ) return null;
+        if ( ancestors.containsKey(key) ) return ancestors.get(key);
+        // also stops cycles
+        ancestors.put(key, null);
+        BuildKey holder = null;
+        for ( Cause a : c.getUpstreamCauses() ) {
+            if ( a instanceof Cause.UpstreamCause ) {
+                holder = holder((Cause.UpstreamCause)a);
+                if ( holder != null ) break;
+            }
+        }
+        ancestors.put(key, holder);
+        return holder;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(RotationPlanner.class.getName());
+}
@@ -0,0 +1,345 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import com.google.common.collect.MapMaker;
+import hudson.model.Job;
+import hudson.model.Run;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of what {@link LogRotator} did, for a single job or for the whole controller.
+ *
+ * Counters only grow, from the start of the controller, so that rates can be derived by sampling them.
+ *
+ * @see RotationMetricsAction
+ */
+@ExportedBean
+public final class RotationStats {
+
+    /**
+     * Whether to sum up the size of builds and artifacts before removing them, if {@link BuildSize} has not recorded it.
+     * Off by default, as it walks the whole directory on the deletion path.
+     */
+    static final boolean MEASURE_FREED_BYTES = Boolean.getBoolean(RotationStats.class.getName() + ".measureFreedBytes");
+
+    private static final RotationStats TOTAL = new RotationStats();
+
+    private static final ConcurrentMap<Job<?,?>,RotationStats> JOBS = new MapMaker().weakKeys().makeMap();
+
+    private final AtomicLong passes = new AtomicLong();
+    private final AtomicLong passNanos = new AtomicLong();
+    private final AtomicLong lastPassNanos = new AtomicLong();
+    private final AtomicLong examined = new AtomicLong();
+    private final AtomicLong deleted = new AtomicLong();
+    private final AtomicLong purged = new AtomicLong();
+    private final AtomicLongArray holds = new AtomicLongArray(HoldReason.values().length);
+    private final AtomicLong upstreamNanos = new AtomicLong();
+    private final AtomicLong bytesFreed = new AtomicLong();
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong packed = new AtomicLong();
+    private final AtomicLong bulkRequests = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final AtomicLong throttledNanos = new AtomicLong();
+
+    /**
+     * The counters of the whole controller.
+     */
+    public static RotationStats total() {
+        return TOTAL;
+    }
+
+    /**
+     * The counters of the given job.
+     */
+    public static RotationStats of(Job<?,?> job) {
+        RotationStats s = JOBS.get(job);
+        if ( s == null ) {
+            s = new RotationStats();
+            RotationStats prev = JOBS.putIfAbsent(job, s);
+            if ( prev != null ) s = prev;
+        }
+        return s;
+    }
+
+    /**
+     * The jobs with counters so far.
+     */
+    static Map<Job<?,?>,RotationStats> jobs() {
+        return JOBS;
+    }
+
+    /**
+     * Records a pass over the job that applied the given plan.
+     */
+    static void pass(Job<?,?> job, RotationPlan plan, long nanos) {
+        of(job).add(plan, nanos);
+        TOTAL.add(plan, nanos);
+    }
+
+    /**
+     * Records the removal of a build that took up the given bytes.
+     */
+    static void deleted(Run<?,?> r, long bytes) {
+        of(r.getParent()).deleted(bytes);
+        TOTAL.deleted(bytes);
+    }
+
+    /**
+     * Records the purging of a build whose artifacts took up the given bytes.
+     */
+    static void purged(Run<?,?> r, long bytes) {
+        of(r.getParent()).purged(bytes);
+        TOTAL.purged(bytes);
+    }
+
+    /**
+     * Records that the log of the build was compressed, saving the given bytes.
+     */
+    static void compressed(Run<?,?> r, long saved) {
+        of(r.getParent()).compressed(saved);
+        TOTAL.compressed(saved);
+    }
+
+    /**
+     * Records that the artifacts of the build were packed, freeing the given bytes in the build directory.
+     */
+    static void packed(Run<?,?> r, long saved) {
+        of(r.getParent()).packed(saved);
+        TOTAL.packed(saved);
+    }
+
+    /**
+     * Records that a batch of builds, the given one among them, was handed to an {@link ArtifactBulkDeleter}.
+     */
+    static void bulkDeleted(Run<?,?> r) {
+        of(r.getParent()).bulkRequests.incrementAndGet();
+        TOTAL.bulkRequests.incrementAndGet();
+    }
+
+    /**
+     * Records that removing the build, or its artifacts, waited for the given time, see {@link DeletionThrottle}.
+     */
+    static void throttled(Run<?,?> r, long nanos) {
+        of(r.getParent()).throttled(nanos);
+        TOTAL.throttled(nanos);
+    }
+
+    /**
+     * Records that removing the build, or its artifacts, was put off until the quiet hours.
+     */
+    static void deferred(Run<?,?> r) {
+        of(r.getParent()).holds.incrementAndGet(HoldReason.DEFERRED.ordinal());
+        TOTAL.holds.incrementAndGet(HoldReason.DEFERRED.ordinal());
+    }
+
+    /**
+     * Returns the size the build takes up, or of its artifacts, as recorded by {@link BuildSize} if possible.
+     * Returns 0 if the size is not recorded, unless {@link #MEASURE_FREED_BYTES} is switched on.
+     */
+    static long sizeOf(Run<?,?> r, boolean artifactsOnly) {
+        BuildSize size = BuildSize.of(r);
+        if ( artifactsOnly ) {
+            // what is left of packed artifacts is the archive
+            PackedArtifacts p = PackedArtifacts.of(r);
+            if ( p != null ) return p.getPackedSize();
+        }
+        if ( size != null ) return artifactsOnly ? size.getArtifacts() : size.getTotal();
+        if ( !MEASURE_FREED_BYTES ) return 0;
+        return BuildSize.sizeOf(artifactsOnly ? r.getArtifactsDir() : r.getRootDir());
+    }
+
+    private void add(RotationPlan plan, long nanos) {
+        passes.incrementAndGet();
+        passNanos.addAndGet(nanos);
+        lastPassNanos.set(nanos);
+        examined.addAndGet(plan.examined);
+        upstreamNanos.addAndGet(plan.upstreamNanos);
+        for ( RotationPlan.Entry e : plan.getHolds() ) {
+            holds.incrementAndGet(((HoldReason) e.reason).ordinal());
+        }
+        holds.addAndGet(HoldReason.TOO_NEW.ordinal(), plan.tooNew);
+    }
+
+    private void deleted(long bytes) {
+        deleted.incrementAndGet();
+        bytesFreed.addAndGet(bytes);
+    }
+
+    private void purged(long bytes) {
+        purged.incrementAndGet();
+        bytesFreed.addAndGet(bytes);
+    }
+
+    private void compressed(long saved) {
+        compressed.incrementAndGet();
+        bytesFreed.addAndGet(saved);
+    }
+
+    private void packed(long saved) {
+        packed.incrementAndGet();
+        bytesFreed.addAndGet(saved);
+    }
+
+    private void throttled(long nanos) {
+        throttled.incrementAndGet();
+        throttledNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Number of rotation passes.
+     */
+    @Exported
+    public long getPasses() {
+        return passes.get();
+    }
+
+    /**
+     * Time spent in rotation passes, in milliseconds.
+     */
+    @Exported
+    public long getPassMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(passNanos.get());
+    }
+
+    /**
+     * Duration of the last rotation pass, in milliseconds.
+     */
+    @Exported
+    public long getLastPassMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastPassNanos.get());
+    }
+
+    /**
+     * Builds looked at by rotation passes.
+     */
+    @Exported
+    public long getRunsExamined() {
+        return examined.get();
+    }
+
+    /**
+     * Builds removed.
+     */
+    @Exported
+    public long getRunsDeleted() {
+        return deleted.get();
+    }
+
+    /**
+     * Builds purged of their artifacts.
+     */
+    @Exported
+    public long getRunsPurged() {
+        return purged.get();
+    }
+
+    /**
+     * Builds kept although the policy selected them, by {@link HoldReason}.
+     */
+    @Exported
+    public Map<String,Long> getHolds() {
+        Map<String,Long> m = new LinkedHashMap<String,Long>();
+        for ( HoldReason r : HoldReason.values() ) {
+            m.put(r.name(), holds.get(r.ordinal()));
+        }
+        return m;
+    }
+
+    public long getHolds(HoldReason reason) {
+        return holds.get(reason.ordinal());
+    }
+
+    /**
+     * Time spent checking whether upstream builds still exist, in milliseconds.
+     */
+    @Exported
+    public long getUpstreamCheckMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(upstreamNanos.get());
+    }
+
+    /**
+     * Builds whose logs were compressed.
+     */
+    @Exported
+    public long getLogsCompressed() {
+        return compressed.get();
+    }
+
+    /**
+     * Builds whose artifacts were packed.
+     */
+    @Exported
+    public long getArtifactsPacked() {
+        return packed.get();
+    }
+
+    /**
+     * Batches of builds purged of their artifacts by an {@link ArtifactBulkDeleter}.
+     */
+    @Exported
+    public long getBulkDeleteRequests() {
+        return bulkRequests.get();
+    }
+
+    /**
+     * Disk space freed by removing builds and artifacts, by compressing logs, and by packing artifacts, in bytes.
+     */
+    @Exported
+    public long getBytesFreed() {
+        return bytesFreed.get();
+    }
+
+    /**
+     * Removals that had to wait for the deletion rate limits.
+     */
+    @Exported
+    public long getRunsThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * Time removals waited for the deletion rate limits, in milliseconds.
+     */
+    @Exported
+    public long getThrottledMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(throttledNanos.get());
+    }
+
+    /**
+     * Removals put off until the quiet hours.
+     */
+    @Exported
+    public long getRunsDeferred() {
+        return holds.get(HoldReason.DEFERRED.ordinal());
+    }
+}
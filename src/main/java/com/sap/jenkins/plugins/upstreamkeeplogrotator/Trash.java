@@ -0,0 +1,147 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Util;
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.model.Jenkins;
+import jenkins.model.StandardArtifactManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Removes build and artifact directories by moving them out of the way, and deleting them later.
+ *
+ * Moving a directory within a file system is a single rename, however large the tree below it is,
+ * so the caller does not wait for the deletion. The trees are reaped by a few background workers.
+ * Whatever is left in the trash when the controller stops is reaped after it starts again.
+ *
+ * The trash lives in the Jenkins home directory. Directories that cannot be moved there, such as
+ * builds on another file system, are deleted the usual way.
+ *
+ * @see LogRotator#isUseTrash()
+ */
+public final class Trash {
+
+    static final String DIR_NAME = "upstreamkeep-logrotator-trash";
+
+    private static final int REAPERS = Math.max(1, Integer.getInteger(Trash.class.getName() + ".reapers", 2));
+
+    private static final ExecutorService reapers = Executors.newFixedThreadPool(REAPERS,
+            new NamingThreadFactory(new DaemonThreadFactory(), "Log Rotation Extended trash reaper"));
+
+    private static final AtomicLong counter = new AtomicLong();
+
+    private Trash() {}
+
+    static File getDir() {
+        return new File(Jenkins.getInstance().getRootDir(), DIR_NAME);
+    }
+
+    /**
+     * Removes the build, moving its directory to the trash first if possible.
+     */
+    static void delete(Run<?,?> r) throws IOException {
+        File dir = r.getRootDir();
+        // Run.delete() still wants to find a directory, and does the bookkeeping
+        if ( dir.isDirectory() && moveToTrash(r, dir) && !dir.mkdir() ) {
+            throw new IOException("Failed to recreate " + dir + " after moving it to the trash");
+        }
+        r.delete();
+    }
+
+    /**
+     * Deletes the artifacts of the build, moving them to the trash first if they are stored in the build directory.
+     */
+    static void deleteArtifacts(Run<?,?> r) throws IOException {
+        if ( r.getArtifactManager() instanceof StandardArtifactManager ) {
+            File dir = r.getArtifactsDir();
+            if ( dir.isDirectory() ) moveToTrash(r, dir);
+        }
+        r.deleteArtifacts();
+    }
+
+    private static boolean moveToTrash(Run<?,?> r, File dir) {
+        File trash = getDir();
+        if ( !trash.isDirectory() && !trash.mkdirs() ) {
+            LOGGER.log(WARNING, "Failed to create {0}, deleting {1} in place", new Object[] {trash, r});
+            return false;
+        }
+        File target = new File(trash, System.currentTimeMillis() + "-" + counter.incrementAndGet());
+        if ( !dir.renameTo(target) ) {
+            LOGGER.log(FINE, "Failed to move {0} to {1}, deleting {2} in place", new Object[] {dir, target, r});
+            return false;
+        }
+        LOGGER.log(FINER, "Moved {0} of {1} to {2}", new Object[] {dir, r, target});
+        reap(target);
+        return true;
+    }
+
+    private static void reap(final File f) {
+        reapers.submit(new Runnable() {
+            public void run() {
+                try {
+                    Util.deleteRecursive(f);
+                    LOGGER.log(FINER, "Reaped {0}", f);
+                } catch (IOException e) {
+                    LOGGER.log(WARNING, "Failed to reap " + f + ", will retry after a restart", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Picks up what was left in the trash when the controller stopped.
+     */
+    @Initializer(after = InitMilestone.JOB_LOADED)
+    public static void resume() {
+        File[] leftovers = getDir().listFiles();
+        if ( leftovers == null || leftovers.length == 0 ) return;
+        LOGGER.log(INFO, "Reaping {0} leftovers in {1}", new Object[] {leftovers.length, getDir()});
+        for ( File f : leftovers ) {
+            reap(f);
+        }
+    }
+
+    /**
+     * Whether the trash is empty.
+     */
+    static boolean isEmpty() {
+        String[] entries = getDir().list();
+        return entries == null || entries.length == 0;
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(Trash.class.getName());
+}
@@ -0,0 +1,143 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import hudson.Extension;
+import hudson.model.Cause;
+import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Remembers whether the builds referenced by {@link Cause.UpstreamCause}s still exist.
+ *
+ * Resolving an upstream cause means looking up the upstream job and loading the build record
+ * from disk. Jobs with many retained builds usually share a handful of upstream builds, so
+ * the answers are kept in a bounded cache shared by all rotation passes. Entries are updated
+ * when the upstream build is deleted, and dropped when its job, or a folder it is in, goes away or moves.
+ * They also expire, in case a build goes away without Jenkins noticing, e.g. when its directory is deleted.
+ */
+public final class UpstreamBuildCache {
+
+    /**
+     * Maximum number of upstream builds whose existence is remembered.
+     */
+    private static final int MAX_SIZE = Integer.getInteger(UpstreamBuildCache.class.getName() + ".maxSize", 10000);
+
+    /**
+     * Minutes after which what is known about an upstream build is looked up again.
+     */
+    private static final long EXPIRE_MINUTES = Long.getLong(UpstreamBuildCache.class.getName() + ".expireMinutes", 60L);
+
+    private static final LoadingCache<BuildKey,Boolean> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_SIZE)
+            .expireAfterWrite(EXPIRE_MINUTES, TimeUnit.MINUTES)
+            .build(new CacheLoader<BuildKey,Boolean>() {
+                @Override
+                public Boolean load(BuildKey key) {
+                    return key.resolve() != null;
+                }
+            });
+
+    private UpstreamBuildCache() {}
+
+    /**
+     * Checks whether the build the given cause points to still exists.
+     */
+    public static boolean exists(Cause.UpstreamCause c) {
+        return CACHE.getUnchecked(BuildKey.of(c));
+    }
+
+    /**
+     * Checks whether build #{@code number} of the job with the given full name still exists.
+     */
+    public static boolean exists(String project, int number) {
+        return CACHE.getUnchecked(new BuildKey(project, number));
+    }
+
+    /**
+     * Records that the given build is gone.
+     *
+     * {@link RunListener#onDeleted(Run)} fires before the build is removed from its job, so
+     * merely invalidating the entry could let a concurrent lookup cache it as still existing.
+     */
+    static void markDeleted(Run<?,?> r) {
+        CACHE.put(BuildKey.of(r), Boolean.FALSE);
+    }
+
+    /**
+     * Records whether build #{@code number} of the job with the given full name exists, when it is known
+     * without resolving the build.
+     */
+    static void record(String project, int number, boolean exists) {
+        CACHE.put(new BuildKey(project, number), exists);
+    }
+
+    /**
+     * Forgets what is known about all builds of the item with the given full name, and of the items in it.
+     */
+    static void invalidate(String item) {
+        String prefix = item + "/";
+        for ( BuildKey k : CACHE.asMap().keySet() ) {
+            if ( k.project.equals(item) || k.project.startsWith(prefix) ) CACHE.invalidate(k);
+        }
+    }
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            LOGGER.log(FINEST, "Marking {0} as deleted in the upstream build cache", r);
+            markDeleted(r);
+        }
+    }
+
+    /**
+     * Deleting or renaming a job, or a folder with jobs in it, does not fire {@link RunListener#onDeleted(Run)} for the builds.
+     */
+    @Extension
+    public static final class ItemListenerImpl extends ItemListener {
+        @Override
+        public void onDeleted(Item item) {
+            invalidate(item.getFullName());
+        }
+
+        @Override
+        public void onLocationChanged(Item item, String oldFullName, String newFullName) {
+            invalidate(oldFullName);
+            invalidate(newFullName);
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(UpstreamBuildCache.class.getName());
+}
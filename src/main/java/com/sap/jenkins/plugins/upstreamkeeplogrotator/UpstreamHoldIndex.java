@@ -0,0 +1,166 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.Extension;
+import hudson.model.Cause;
+import hudson.model.Job;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+import jenkins.util.Timer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+import static java.util.logging.Level.*;
+
+/**
+ * Reverse index from upstream builds to the downstream builds that {@link LogRotator#isUpstreamKeep()} holds on to.
+ *
+ * When an upstream build is deleted, only the downstream builds it was holding are re-checked, in the
+ * background, instead of waiting for the downstream job to finish its next build.
+ */
+public final class UpstreamHoldIndex {
+
+    /**
+     * Upstream build to the downstream builds it holds. Guarded by itself.
+     */
+    private static final Map<BuildKey,Set<BuildKey>> HOLDS = new HashMap<BuildKey,Set<BuildKey>>();
+
+    private UpstreamHoldIndex() {}
+
+    /**
+     * Records that the given downstream build may be held by its upstream causes.
+     */
+    static void register(Run<?,?> downstream) {
+        List<BuildKey> upstream = new ArrayList<BuildKey>();
+        for ( Cause c : downstream.getCauses() ) {
+            if ( c instanceof Cause.UpstreamCause ) upstream.add(BuildKey.of((Cause.UpstreamCause)c));
+        }
+        register(BuildKey.of(downstream), upstream);
+    }
+
+    /**
+     * Records that the given downstream build may be held by the given upstream builds.
+     */
+    static void register(BuildKey downstream, Collection<BuildKey> upstream) {
+        synchronized (HOLDS) {
+            for ( BuildKey u : upstream ) {
+                Set<BuildKey> held = HOLDS.get(u);
+                if ( held == null ) HOLDS.put(u, held = new HashSet<BuildKey>());
+                held.add(downstream);
+            }
+        }
+    }
+
+    /**
+     * Forgets the given downstream build.
+     */
+    static void unregister(Run<?,?> downstream) {
+        BuildKey d = BuildKey.of(downstream);
+        for ( Cause c : downstream.getCauses() ) {
+            if ( c instanceof Cause.UpstreamCause ) {
+                BuildKey u = BuildKey.of((Cause.UpstreamCause)c);
+                synchronized (HOLDS) {
+                    Set<BuildKey> held = HOLDS.get(u);
+                    if ( held != null && held.remove(d) && held.isEmpty() ) HOLDS.remove(u);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the downstream builds held by the given upstream build.
+     */
+    static Set<BuildKey> release(Run<?,?> upstream) {
+        synchronized (HOLDS) {
+            Set<BuildKey> held = HOLDS.remove(BuildKey.of(upstream));
+            return held != null ? held : Collections.<BuildKey>emptySet();
+        }
+    }
+
+    /**
+     * Re-checks the given downstream builds, grouped by job.
+     */
+    static void recheck(Set<BuildKey> downstream) {
+        Map<String,SortedSet<Integer>> byJob = new HashMap<String,SortedSet<Integer>>();
+        for ( BuildKey d : downstream ) {
+            SortedSet<Integer> numbers = byJob.get(d.project);
+            if ( numbers == null ) byJob.put(d.project, numbers = new TreeSet<Integer>());
+            numbers.add(d.number);
+        }
+        for ( Map.Entry<String,SortedSet<Integer>> e : byJob.entrySet() ) {
+            Job<?,?> job = new BuildKey(e.getKey(), 0).resolveJob();
+            if ( job == null ) continue;
+            if ( !(job.getBuildDiscarder() instanceof LogRotator) ) continue;
+            try {
+                ((LogRotator) job.getBuildDiscarder()).recheck(job, e.getValue());
+            } catch (InterruptedException x) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception x) {
+                LOGGER.log(WARNING, "Failed to re-check builds " + e.getValue() + " of " + job, x);
+            }
+        }
+    }
+
+    private static boolean isUpstreamKeep(Job<?,?> job) {
+        return job.getBuildDiscarder() instanceof LogRotator && ((LogRotator)job.getBuildDiscarder()).isUpstreamKeep();
+    }
+
+    @Extension
+    public static final class RunListenerImpl extends RunListener<Run<?,?>> {
+        @Override
+        public void onCompleted(Run<?,?> r, TaskListener listener) {
+            if ( isUpstreamKeep(r.getParent()) ) register(r);
+        }
+
+        @Override
+        public void onDeleted(Run<?,?> r) {
+            unregister(r);
+            final Set<BuildKey> held = release(r);
+            if ( held.isEmpty() ) return;
+            // the re-check must not see this build as still existing
+            UpstreamBuildCache.markDeleted(r);
+            LOGGER.log(FINE, "Deletion of {0} released {1}", new Object[] {r, held});
+            Timer.get().submit(new Runnable() {
+                public void run() {
+                    recheck(held);
+                }
+            });
+        }
+    }
+
+    private static final Logger LOGGER = Logger.getLogger(UpstreamHoldIndex.class.getName());
+}
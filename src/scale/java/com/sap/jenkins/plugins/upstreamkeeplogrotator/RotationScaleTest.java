@@ -0,0 +1,231 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, SAP SE
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.sap.jenkins.plugins.upstreamkeeplogrotator;
+
+import hudson.model.Cause;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rotates jobs with thousands of builds and checks the wall time, the peak heap and the number of
+ * build records loaded against the thresholds in {@code scale-thresholds.properties}.
+ *
+ * Each scenario is a chain of three {@link SyntheticJob}s whose builds exist on disk: every build of
+ * the downstream job is caused by a build of the middle job, which in turn is caused by a build of
+ * the upstream job. Some builds are keepers, some have artifacts. The downstream job is rotated twice:
+ * the first time there is no {@link BuildIndex} yet, the second time only a single build was added.
+ *
+ * {@link #testBulkPurge()} measures the {@link ArtifactBulkDeleter} batching instead.
+ *
+ * Not part of the regular build; run it with {@code mvn -Pscale-test test}.
+ */
+public class RotationScaleTest extends HudsonTestCase {
+
+    private static final double KEEP_LOG_RATIO = 0.02;
+
+    private static final double ARTIFACT_RATIO = 0.3;
+
+    private final Properties thresholds = new Properties();
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        InputStream in = getClass().getResourceAsStream("scale-thresholds.properties");
+        try {
+            thresholds.load(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void test5000() throws Exception {
+        scale(5000);
+    }
+
+    public void test20000() throws Exception {
+        scale(20000);
+    }
+
+    public void test50000() throws Exception {
+        scale(50000);
+    }
+
+    /**
+     * Purges a job of its artifacts through the {@link FileArtifactBulkDeleter}, with a simulated round trip per
+     * request, one build per request and then in batches, and compares the throughput.
+     */
+    public void testBulkPurge() throws Exception {
+        double single = bulkPurge(1, 1);
+        double batched = bulkPurge(100, 4);
+        assertTrue("batched " + batched + " builds/s, single " + single + " builds/s", batched >= single * limit("bulk.speedup"));
+    }
+
+    private double bulkPurge(int batchSize, int concurrency) throws Exception {
+        int builds = (int) limit("bulk.builds");
+        SyntheticJob.Folder folder = new SyntheticJob.Folder(new File(jenkins.getRootDir(), "bulk-" + batchSize));
+        SyntheticJob job = new SyntheticJob(folder, "job");
+        Random random = new Random(42);
+        for ( int n=1; n<=builds; n++ ) {
+            add(job, n, null, random);
+        }
+        job.setBuildDiscarder(new LogRotator(-1, -1, -1, -1, -1, 1, false, false));
+        RotationConfiguration.get().setBulkDeleteBatchSize(batchSize);
+        RotationConfiguration.get().setBulkDeleteConcurrency(concurrency);
+        FileArtifactBulkDeleter.enabled = true;
+        FileArtifactBulkDeleter.latencyMillis = (long) limit("bulk.latencyMillis");
+        try {
+            long requests = FileArtifactBulkDeleter.getRequests();
+            long start = System.nanoTime();
+            job.getBuildDiscarder().perform(job);
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            long purged = RotationStats.of(job).getRunsPurged();
+            double perSecond = purged * 1000.0 / millis;
+            System.out.printf("Purged %d builds in batches of %d, %d at a time: %d requests, %d ms, %.0f builds/s%n",
+                    purged, batchSize, concurrency, FileArtifactBulkDeleter.getRequests() - requests, millis, perSecond);
+            assertTrue(purged > 0);
+            return perSecond;
+        } finally {
+            FileArtifactBulkDeleter.enabled = false;
+            FileArtifactBulkDeleter.latencyMillis = 0;
+        }
+    }
+
+    private void scale(int builds) throws Exception {
+        SyntheticJob.Folder folder = new SyntheticJob.Folder(new File(jenkins.getRootDir(), "scale-" + builds));
+        Random random = new Random(42);
+        SyntheticJob upstream = generate(folder, "upstream", builds / 10, null, random);
+        SyntheticJob middle = generate(folder, "middle", builds / 3, upstream, random);
+        SyntheticJob downstream = generate(folder, "downstream", builds, middle, random);
+
+        upstream.setBuildDiscarder(new LogRotator(-1, -1, builds / 100, -1, -1, -1, false, false));
+        middle.setBuildDiscarder(new LogRotator(-1, -1, builds / 30, -1, -1, -1, true, false));
+        LogRotator policy = new LogRotator(-1, -1, builds / 20, -1, -1, builds / 100, true, true);
+        downstream.setBuildDiscarder(policy);
+
+        // upstream first, as the sweeper does, so that holds get released
+        upstream.getBuildDiscarder().perform(upstream);
+        middle.getBuildDiscarder().perform(middle);
+        downstream.takeLoads();
+        Measurement cold = measure(policy, downstream);
+        System.out.printf("%d builds, first pass: %s%n", builds, cold);
+        assertTrue("wall time " + cold, cold.millis <= limit("cold.millisPerBuild") * builds);
+        assertTrue("peak heap " + cold, cold.heapBytes <= limit("cold.heapBytes"));
+        assertTrue("build records loaded " + cold, cold.loads <= limit("cold.loadsPerBuild") * builds);
+
+        add(downstream, builds + 1, middle, random);
+        Measurement steady = measure(policy, downstream);
+        System.out.printf("%d builds, next pass: %s%n", builds, steady);
+        assertTrue("wall time " + steady, steady.millis <= limit("steady.millis"));
+        assertTrue("peak heap " + steady, steady.heapBytes <= limit("steady.heapBytes"));
+        assertTrue("build records loaded " + steady, steady.loads <= limit("steady.loads"));
+    }
+
+    private double limit(String key) {
+        return Double.parseDouble(thresholds.getProperty(key));
+    }
+
+    /**
+     * Creates a job with the given number of builds, one an hour up to now, each caused by a random
+     * build of the upstream job if there is one.
+     */
+    private SyntheticJob generate(SyntheticJob.Folder folder, String name, int builds, SyntheticJob upstream, Random random) throws IOException {
+        SyntheticJob job = new SyntheticJob(folder, name);
+        for ( int n=1; n<=builds; n++ ) {
+            add(job, n, upstream, random);
+        }
+        job.takeLoads();
+        return job;
+    }
+
+    private void add(SyntheticJob job, int number, SyntheticJob upstream, Random random) throws IOException {
+        List<Cause> causes = Collections.emptyList();
+        if ( upstream != null ) {
+            SyntheticJob.SyntheticRun u = upstream.getBuildByNumber(1 + random.nextInt(upstream.getLastBuild().getNumber()));
+            if ( u != null ) causes = Collections.<Cause>singletonList(new Cause.UpstreamCause(u));
+        }
+        long timestamp = System.currentTimeMillis() - TimeUnit.HOURS.toMillis(100000 - number);
+        SyntheticJob.SyntheticRun r = job.add(number, timestamp, random.nextDouble() < KEEP_LOG_RATIO, causes);
+        job.setLastSuccessful(r, r);
+        if ( !r.getRootDir().mkdirs() ) throw new IOException("Failed to create " + r.getRootDir());
+        if ( random.nextDouble() < ARTIFACT_RATIO ) {
+            r.getArtifactsDir().mkdirs();
+            OutputStream out = new FileOutputStream(new File(r.getArtifactsDir(), "f"));
+            try {
+                out.write(new byte[1024]);
+            } finally {
+                out.close();
+            }
+        }
+        // the synthetic upstream jobs are not known to Jenkins, so tell the cache
+        UpstreamBuildCache.record(job.getFullName(), number, true);
+    }
+
+    private static Measurement measure(LogRotator policy, SyntheticJob job) throws Exception {
+        System.gc();
+        long before = heapUsed(false);
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() == MemoryType.HEAP ) pool.resetPeakUsage();
+        }
+        long start = System.nanoTime();
+        policy.perform(job);
+        Measurement m = new Measurement();
+        m.millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        m.heapBytes = Math.max(0, heapUsed(true) - before);
+        m.loads = job.takeLoads();
+        return m;
+    }
+
+    private static long heapUsed(boolean peak) {
+        long used = 0;
+        for ( MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans() ) {
+            if ( pool.getType() != MemoryType.HEAP ) continue;
+            used += peak ? pool.getPeakUsage().getUsed() : pool.getUsage().getUsed();
+        }
+        return used;
+    }
+
+    private static final class Measurement {
+        long millis;
+        long heapBytes;
+        long loads;
+
+        @Override
+        public String toString() {
+            return millis + " ms, " + heapBytes / 1024 + " KB heap, " + loads + " builds loaded";
+        }
+    }
+}
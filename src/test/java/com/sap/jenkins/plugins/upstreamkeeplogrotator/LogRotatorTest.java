@@ -30,15 +30,27 @@ import hudson.model.BuildListener;
 import hudson.model.Cause;
 import hudson.model.Descriptor;
 import hudson.model.FreeStyleProject;
+import hudson.model.Job;
 import hudson.model.Result;
 import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.tasks.ArtifactArchiver;
 import hudson.tasks.BuildStepMonitor;
+import hudson.tasks.BuildTrigger;
 import hudson.tasks.Builder;
+import hudson.tasks.Fingerprinter;
 import hudson.tasks.Publisher;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URL;
 import java.util.Arrays;
+import java.util.Calendar;
 import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.IOUtils;
 import org.jvnet.hudson.test.Bug;
 import org.jvnet.hudson.test.FailureBuilder;
 import org.jvnet.hudson.test.HudsonTestCase;
@@ -65,6 +77,24 @@ public class LogRotatorTest extends HudsonTestCase {
         assertEquals(3, numberOf(project.getLastFailedBuild()));
     }
 
+    public void testAsyncDelete() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, 2, -1, -1);
+        lr.setAsyncDelete(true);
+        project.setBuildDiscarder(lr);
+        for ( int i=1; i<=5; i++ ) {
+            assertEquals(Result.SUCCESS, build(project));
+        }
+        for ( int i=0; i<100 && !DeletionQueue.isIdle(); i++ ) {
+            Thread.sleep(100);
+        }
+        assertNull(project.getBuildByNumber(1));
+        assertNull(project.getBuildByNumber(2));
+        assertNull(project.getBuildByNumber(3));
+        assertNotNull(project.getBuildByNumber(4));
+        assertNotNull(project.getBuildByNumber(5));
+    }
+
     @Bug(2417)
     public void testStableVsUnstable() throws Exception {
         FreeStyleProject project = createFreeStyleProject();
@@ -213,6 +243,578 @@ public class LogRotatorTest extends HudsonTestCase {
         assertTrue(project.getBuildByNumber(12).getHasArtifacts());
     }
 
+    public void testUpstreamBuildCache() throws Exception {
+        FreeStyleProject upstream = createFreeStyleProject();
+        upstream.scheduleBuild2(0).get(); // #1
+        assertTrue(UpstreamBuildCache.exists(upstream.getFullName(), 1));
+        // answered from the cache, without looking
+        UpstreamBuildCache.record(upstream.getFullName(), 2, true);
+        assertTrue(UpstreamBuildCache.exists(upstream.getFullName(), 2));
+
+        upstream.getBuildByNumber(1).delete();
+        assertFalse(UpstreamBuildCache.exists(upstream.getFullName(), 1));
+
+        String oldName = upstream.getFullName();
+        upstream.scheduleBuild2(0).get(); // #2
+        upstream.renameTo("renamed");
+        assertFalse(UpstreamBuildCache.exists(oldName, 2));
+        assertTrue(UpstreamBuildCache.exists("renamed", 2));
+
+        // everything in a folder goes with it
+        UpstreamBuildCache.record("folder/job", 1, true);
+        UpstreamBuildCache.record("folder2/job", 1, true);
+        UpstreamBuildCache.invalidate("folder");
+        assertFalse(UpstreamBuildCache.exists("folder/job", 1));
+        assertTrue(UpstreamBuildCache.exists("folder2/job", 1));
+    }
+
+    public void testUpstreamDeletionRechecksDownstream() throws Exception {
+        FreeStyleProject upstream = createFreeStyleProject();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, 1, -1, -1, true, false));
+        Run u = upstream.scheduleBuild2(0).get();
+        Cause c = new Cause.UpstreamCause(u);
+        for ( int i=1; i<=3; i++ ) {
+            assertEquals(Result.SUCCESS, build(project, c));
+        }
+        assertNotNull(project.getBuildByNumber(1));
+        assertNotNull(project.getBuildByNumber(2));
+
+        // no further downstream build; the deletion alone must release #1 and #2
+        u.delete();
+        for ( int i=0; i<100 && project.getBuildByNumber(2) != null; i++ ) {
+            Thread.sleep(100);
+        }
+        assertNull(project.getBuildByNumber(1));
+        assertNull(project.getBuildByNumber(2));
+        assertNotNull(project.getBuildByNumber(3));
+    }
+
+    public void testSweep() throws Exception {
+        FreeStyleProject upstream = createFreeStyleProject();
+        FreeStyleProject project = createFreeStyleProject();
+        upstream.setBuildDiscarder(new LogRotator(-1, 10, -1, -1));
+        project.setBuildDiscarder(new LogRotator(-1, 10, -1, -1, true, false));
+        Run u = upstream.scheduleBuild2(0).get();
+        assertEquals(Result.SUCCESS, upstream.scheduleBuild2(0).get().getResult());
+        for ( int i=1; i<=3; i++ ) {
+            assertEquals(Result.SUCCESS, build(project, new Cause.UpstreamCause(u)));
+        }
+
+        // tighten the policies without building anything
+        upstream.setBuildDiscarder(new LogRotator(-1, 1, -1, -1));
+        project.setBuildDiscarder(new LogRotator(-1, 1, -1, -1, true, false));
+        upstream.getPublishersList().add(new BuildTrigger(project.getName(), false));
+        jenkins.rebuildDependencyGraph();
+        List<List<Job<?,?>>> waves = RetentionSweeper.waves(jenkins);
+        assertEquals(2, waves.size());
+        assertSame(upstream, waves.get(0).get(0));
+        RetentionSweeper.get().sweep(TaskListener.NULL, 2, 2);
+
+        // the sweep may have coalesced with a re-check triggered by the upstream deletion
+        for ( int i=0; i<100 && project.getBuildByNumber(2) != null; i++ ) {
+            Thread.sleep(100);
+        }
+
+        assertNull(upstream.getBuildByNumber(1));
+        assertNull(project.getBuildByNumber(1));
+        assertNull(project.getBuildByNumber(2));
+        assertNotNull(project.getBuildByNumber(3));
+    }
+
+    public void testPlan() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        project.getBuildersList().replaceBy(Collections.singleton(new FailureBuilder()));
+        assertEquals(Result.FAILURE, build(project)); // #2
+        assertEquals(Result.FAILURE, build(project)); // #3
+
+        LogRotator lr = new LogRotator(-1, 1, -1, -1);
+        project.setBuildDiscarder(lr);
+        RotationPlan plan = lr.plan(project);
+        assertEquals(1, plan.getDeletes().size());
+        assertEquals(2, plan.getDeletes().get(0).getNumber());
+        assertEquals("NUM_TO_KEEP", plan.getDeletes().get(0).getReason());
+        assertEquals(1, plan.getHolds().size());
+        assertEquals(1, plan.getHolds().get(0).getNumber());
+        assertEquals("LAST_SUCCESSFUL", plan.getHolds().get(0).getReason());
+        // planning alone must not touch the job
+        assertNotNull(project.getBuildByNumber(2));
+
+        plan.execute();
+        assertNotNull(project.getBuildByNumber(1));
+        assertNull(project.getBuildByNumber(2));
+        assertNotNull(project.getBuildByNumber(3));
+    }
+
+    public void testCountAndAgeInOnePass() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        for ( int i=1; i<=4; i++ ) {
+            assertEquals(Result.SUCCESS, build(project));
+        }
+        // everything is older than zero hours
+        LogRotator lr = new LogRotator(-1, 0, 2, -1, -1, -1, false, false);
+        RotationPlan plan = lr.plan(project);
+        assertEquals(4, plan.examined);
+        assertEquals(3, plan.getDeletes().size());
+        assertEquals(3, plan.getDeletes().get(0).getNumber());
+        assertEquals("AGE", plan.getDeletes().get(0).getReason());
+        assertEquals(2, plan.getDeletes().get(1).getNumber());
+        assertEquals("NUM_TO_KEEP", plan.getDeletes().get(1).getReason());
+        assertEquals(1, plan.getDeletes().get(2).getNumber());
+        assertEquals(1, plan.getHolds().size());
+        assertEquals(4, plan.getHolds().get(0).getNumber());
+    }
+
+    public void testStats() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, 1, -1, -1));
+        long totalDeleted = RotationStats.total().getRunsDeleted();
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        project.getBuildersList().replaceBy(Collections.singleton(new FailureBuilder()));
+        assertEquals(Result.FAILURE, build(project)); // #2
+        assertEquals(Result.FAILURE, build(project)); // #3
+
+        RotationStats stats = RotationStats.of(project);
+        assertEquals(3, stats.getPasses());
+        assertEquals(1, stats.getRunsDeleted());
+        assertEquals(2, stats.getHolds(HoldReason.LAST_SUCCESSFUL));
+        assertTrue(stats.getRunsExamined() >= 3);
+        assertTrue(stats.getBytesFreed() > 0);
+        assertEquals(totalDeleted + 1, RotationStats.total().getRunsDeleted());
+    }
+
+    public void testQuietHours() throws Exception {
+        assertTrue(DeletionThrottle.parseQuietHours(" ").isEmpty());
+        List<int[]> windows = DeletionThrottle.parseQuietHours("22:00-06:00, 12-13");
+        assertEquals(2, windows.size());
+        Calendar c = Calendar.getInstance();
+        c.set(Calendar.HOUR_OF_DAY, 23);
+        assertTrue(DeletionThrottle.isQuiet(windows, c));
+        c.set(Calendar.HOUR_OF_DAY, 12);
+        assertTrue(DeletionThrottle.isQuiet(windows, c));
+        c.set(Calendar.HOUR_OF_DAY, 9);
+        assertFalse(DeletionThrottle.isQuiet(windows, c));
+        try {
+            DeletionThrottle.parseQuietHours("22");
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        RotationConfiguration config = RotationConfiguration.get();
+        int later = (Calendar.getInstance().get(Calendar.HOUR_OF_DAY) + 2) % 24;
+        config.setQuietHours(later + "-" + (later + 1));
+        config.setDeferAboveMegabytes(0);
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, 1, -1, -1));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2
+        assertNotNull(project.getBuildByNumber(1));
+        assertEquals(1, RotationStats.of(project).getRunsDeferred());
+
+        config.setQuietHours("0-24");
+        assertEquals(Result.SUCCESS, build(project)); // #3
+        assertNull(project.getBuildByNumber(1));
+        assertNull(project.getBuildByNumber(2));
+    }
+
+    public void testConfigurationRoundtrip() throws Exception {
+        RotationConfiguration config = RotationConfiguration.get();
+        config.setSweepIntervalMinutes(5);
+        config.setDeletesPerSecond(7);
+        config.setQuietHours("22:00-06:00");
+        config.setBulkDeleteBatchSize(50);
+        config.setBulkDeleteConcurrency(3);
+        configRoundtrip();
+        config = RotationConfiguration.get();
+        assertEquals(5, config.getSweepIntervalMinutes());
+        assertEquals(7, config.getDeletesPerSecond());
+        assertEquals("22:00-06:00", config.getQuietHours());
+        assertEquals(50, config.getBulkDeleteBatchSize());
+        assertEquals(3, config.getBulkDeleteConcurrency());
+    }
+
+    public void testRotationCoalescing() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        assertTrue(RotationGuard.begin(project));
+        // requests made during a pass collapse into a single further pass
+        assertFalse(RotationGuard.begin(project));
+        assertFalse(RotationGuard.begin(project));
+        assertTrue(RotationGuard.again(project));
+        assertFalse(RotationGuard.again(project));
+        // a request made during a failed pass is handed back to the caller
+        assertTrue(RotationGuard.begin(project));
+        assertFalse(RotationGuard.begin(project));
+        assertTrue(RotationGuard.abort(project));
+        assertTrue(RotationGuard.begin(project));
+        assertFalse(RotationGuard.abort(project));
+        assertTrue(RotationGuard.begin(project));
+        assertFalse(RotationGuard.again(project));
+    }
+
+    public void testDeletionThrottle() throws Exception {
+        RotationConfiguration.get().setDeletesPerSecond(1);
+        FreeStyleProject project = createFreeStyleProject();
+        for ( int i=1; i<=3; i++ ) {
+            assertEquals(Result.SUCCESS, build(project));
+        }
+        project.setBuildDiscarder(new LogRotator(-1, 1, -1, -1));
+        project.logRotate();
+        assertEquals(1, project.getBuilds().size());
+        assertTrue(RotationStats.of(project).getRunsThrottled() > 0);
+    }
+
+    public void testArtifactBudget() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, -1, -1, -1);
+        lr.setArtifactBudgetStr("2");
+        project.setBuildDiscarder(lr);
+        project.getBuildersList().replaceBy(Collections.singleton(new CreateLargeArtifact(1024 * 1024)));
+        project.getPublishersList().replaceBy(Collections.singleton(new ArtifactArchiver("f", "", true, false)));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(1024 * 1024, BuildSize.of(project.getBuildByNumber(1)).getArtifacts());
+        assertEquals(Result.SUCCESS, build(project)); // #2
+        assertTrue(project.getBuildByNumber(1).getHasArtifacts());
+        assertEquals(Result.SUCCESS, build(project)); // #3
+        assertFalse(project.getBuildByNumber(1).getHasArtifacts());
+        assertEquals(0, BuildSize.of(project.getBuildByNumber(1)).getArtifacts());
+        assertTrue(project.getBuildByNumber(2).getHasArtifacts());
+        assertTrue(project.getBuildByNumber(3).getHasArtifacts());
+    }
+
+    public void testUpstreamKeepTransitive() throws Exception {
+        FreeStyleProject root = createFreeStyleProject();
+        FreeStyleProject middle = createFreeStyleProject();
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, 1, -1, -1, true, false);
+        lr.setUpstreamKeepTransitive(true);
+        project.setBuildDiscarder(lr);
+        Run r = root.scheduleBuild2(0).get();
+        Run m = middle.scheduleBuild2(0, new Cause.UpstreamCause(r)).get();
+        assertEquals(Result.SUCCESS, build(project, new Cause.UpstreamCause(m))); // #1
+        m.delete();
+        assertEquals(Result.SUCCESS, build(project)); // #2
+        assertNotNull("the root of the chain still exists", project.getBuildByNumber(1));
+
+        r.delete();
+        for ( int i=0; i<100 && project.getBuildByNumber(1) != null; i++ ) {
+            Thread.sleep(100);
+        }
+        assertNull(project.getBuildByNumber(1));
+    }
+
+    public void testUpstreamKeepFingerprints() throws Exception {
+        FreeStyleProject upstream = createFreeStyleProject();
+        upstream.getBuildersList().add(new ProduceArtifact());
+        upstream.getPublishersList().add(new Fingerprinter("f", false));
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, 1, -1, -1, true, false);
+        lr.setUpstreamKeepFingerprints(true);
+        project.setBuildDiscarder(lr);
+        project.getBuildersList().add(new CreateArtifact());
+        project.getPublishersList().add(new Fingerprinter("f", false));
+
+        Run u = upstream.scheduleBuild2(0).get();
+        assertEquals(Result.SUCCESS, build(project)); // #1, consumes what u produced
+        assertEquals(1, BuildIndex.of(project).get(1).producers.length);
+        assertEquals(Result.SUCCESS, build(project)); // #2
+        assertNotNull(project.getBuildByNumber(1));
+
+        u.delete();
+        for ( int i=0; i<100 && project.getBuildByNumber(1) != null; i++ ) {
+            Thread.sleep(100);
+        }
+        assertNull(project.getBuildByNumber(1));
+    }
+
+    public void testProducersResolvedOnce() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, -1, -1, -1));
+        project.getBuildersList().add(new CreateArtifact());
+        project.getPublishersList().add(new Fingerprinter("f", false));
+        assertEquals(Result.SUCCESS, build(project)); // #1, fingerprints only its own file
+
+        BuildKey[] producers = BuildIndex.of(project).get(1).producers;
+        assertNotNull(producers);
+        assertEquals(0, producers.length);
+        Run r = project.getBuildByNumber(1);
+        r.keepLog(true);
+        assertTrue(BuildIndex.of(project).get(1).keepLog);
+        assertSame(producers, BuildIndex.of(project).get(1).producers);
+    }
+
+    public void testIndex() throws Exception {
+        FreeStyleProject upstream = createFreeStyleProject();
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, 10, -1, -1));
+        Run u = upstream.scheduleBuild2(0).get();
+        assertEquals(Result.SUCCESS, build(project, new Cause.UpstreamCause(u))); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2
+        assertTrue(new File(project.getRootDir(), BuildIndex.FILE_NAME).isFile());
+
+        BuildIndex index = BuildIndex.of(project);
+        BuildIndex.Entry e = index.get(1);
+        assertFalse(e.building);
+        assertFalse(e.keepLog);
+        assertEquals(Result.SUCCESS.ordinal, e.result);
+        assertEquals(1, e.upstream.length);
+        assertEquals(upstream.getFullName(), e.upstream[0].project);
+        assertTrue(e.size > 0);
+        assertEquals(2, index.newest().number);
+
+        project.getBuildByNumber(1).keepLog(true);
+        assertTrue(index.get(1).keepLog);
+        project.getBuildByNumber(2).delete();
+        assertNull(index.get(2));
+        assertEquals(1, index.newest().number);
+    }
+
+    public void testIndexAfterOtherDiscarder() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, 10, -1, -1));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(1, BuildIndex.of(project).size());
+
+        project.setBuildDiscarder(null);
+        assertEquals(Result.SUCCESS, build(project)); // #2, not indexed
+        project.setBuildDiscarder(new LogRotator(-1, 10, -1, -1));
+        BuildIndex index = BuildIndex.of(project);
+        assertEquals(2, index.size());
+        assertEquals(2, index.newest().number);
+    }
+
+    public void testAgeCutoffSearch() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        for ( int i=1; i<=4; i++ ) {
+            assertEquals(Result.SUCCESS, build(project));
+        }
+        BuildIndex index = BuildIndex.of(project);
+        long t1 = project.getBuildByNumber(1).getTimeInMillis();
+        long t3 = project.getBuildByNumber(3).getTimeInMillis();
+        assertNull(index.newestStartedBefore(t1));
+        assertEquals(1, index.newestStartedBefore(t1 + 1).number);
+        assertEquals(3, index.newestStartedBefore(t3 + 1).number);
+        assertEquals(4, index.newestStartedBefore(Long.MAX_VALUE).number);
+
+        project.getBuildByNumber(3).delete();
+        project.getBuildByNumber(2).delete();
+        assertEquals(1, index.newestStartedBefore(t3 + 1).number);
+    }
+
+    public void testLogCompression() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, -1, -1, -1);
+        lr.setLogCompressHoursToKeepStr("0");
+        project.setBuildDiscarder(lr);
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2, compresses the log of #1
+
+        Run r = project.getBuildByNumber(1);
+        File gz = new File(r.getRootDir(), LogCompressor.COMPRESSED);
+        for ( int i=0; i<100 && !gz.isFile(); i++ ) {
+            Thread.sleep(100);
+        }
+        assertTrue(gz.isFile());
+        assertFalse(new File(r.getRootDir(), LogCompressor.PLAIN).exists());
+        assertTrue(IOUtils.toString(r.getLogInputStream()).contains("Finished: SUCCESS"));
+        // #2 was still running when the log of #1 was compressed
+        assertTrue(new File(project.getBuildByNumber(2).getRootDir(), LogCompressor.PLAIN).isFile());
+        assertEquals(1, RotationStats.of(project).getLogsCompressed());
+    }
+
+    public void testArtifactPacking() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, -1, -1, -1);
+        lr.setArtifactPackNumToKeepStr("1");
+        project.setBuildDiscarder(lr);
+        project.getBuildersList().replaceBy(Collections.singleton(new CreateArtifact()));
+        project.getPublishersList().replaceBy(Collections.singleton(new ArtifactArchiver("f", "", true, false)));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2, packs the artifacts of #1
+
+        Run r = project.getBuildByNumber(1);
+        for ( int i=0; i<100 && RotationStats.of(project).getArtifactsPacked() == 0; i++ ) {
+            Thread.sleep(100);
+        }
+        PackedArtifacts packed = PackedArtifacts.of(r);
+        assertNotNull(packed);
+        assertTrue(packed.isInPlace());
+        assertTrue(packed.getArchive().isFile());
+        assertFalse(r.getArtifactsDir().exists());
+        // the archive still counts toward the artifact budget
+        assertTrue(BuildSize.of(r).isPacked());
+        assertEquals(packed.getArchive().length(), BuildSize.of(r).getArtifacts());
+        // still shown and served as before
+        assertEquals(1, r.getArtifacts().size());
+        assertEquals("f", ((Run.Artifact) r.getArtifacts().get(0)).relativePath);
+        assertEquals("content", createWebClient().getPage(new URL(getURL(), r.getUrl() + "artifact/f")).getWebResponse().getContentAsString());
+        assertTrue(project.getBuildByNumber(2).getHasArtifacts());
+        assertEquals(1, RotationStats.of(project).getArtifactsPacked());
+        r.reload();
+        assertNotNull(PackedArtifacts.of(r));
+
+        // removing the artifacts now only takes the archive
+        DeletionQueue.Action.DELETE_ARTIFACTS.perform(r, false);
+        assertFalse(packed.getArchive().exists());
+        assertFalse(r.getHasArtifacts());
+    }
+
+    public void testColdArtifactsRemovedWithJob() throws Exception {
+        File cold = createTmpDir();
+        RotationConfiguration.get().setColdArtifactDir(cold.getPath());
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, -1, -1, -1);
+        lr.setArtifactPackNumToKeepStr("1");
+        project.setBuildDiscarder(lr);
+        project.getBuildersList().replaceBy(Collections.singleton(new CreateArtifact()));
+        project.getPublishersList().replaceBy(Collections.singleton(new ArtifactArchiver("f", "", true, false)));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2, packs the artifacts of #1
+        for ( int i=0; i<100 && RotationStats.of(project).getArtifactsPacked() == 0; i++ ) {
+            Thread.sleep(100);
+        }
+        PackedArtifacts packed = PackedArtifacts.of(project.getBuildByNumber(1));
+        assertNotNull(packed);
+        assertFalse(packed.isInPlace());
+        assertTrue(packed.getArchive().isFile());
+
+        File dir = new File(cold, project.getFullName());
+        project.delete();
+        assertFalse(dir.exists());
+    }
+
+    public void testColdArtifactsFollowRename() throws Exception {
+        File cold = createTmpDir();
+        RotationConfiguration.get().setColdArtifactDir(cold.getPath());
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, -1, -1, -1);
+        lr.setArtifactPackNumToKeepStr("1");
+        project.setBuildDiscarder(lr);
+        project.getBuildersList().replaceBy(Collections.singleton(new CreateArtifact()));
+        project.getPublishersList().replaceBy(Collections.singleton(new ArtifactArchiver("f", "", true, false)));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2, packs the artifacts of #1
+        for ( int i=0; i<100 && RotationStats.of(project).getArtifactsPacked() == 0; i++ ) {
+            Thread.sleep(100);
+        }
+        assertNotNull(PackedArtifacts.of(project.getBuildByNumber(1)));
+
+        File dir = new File(cold, project.getFullName());
+        project.renameTo("renamed");
+        assertFalse(dir.exists());
+        Run r = project.getBuildByNumber(1);
+        PackedArtifacts packed = PackedArtifacts.of(r);
+        assertEquals(new File(new File(cold, "renamed"), "1.zip").getAbsoluteFile(), packed.getArchive());
+        assertTrue(packed.getArchive().isFile());
+        assertEquals(1, r.getArtifacts().size());
+        r.reload();
+        assertEquals(packed.getArchive(), PackedArtifacts.of(r).getArchive());
+    }
+
+    public void testBulkArtifactDelete() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        project.getBuildersList().replaceBy(Collections.singleton(new CreateArtifact()));
+        project.getPublishersList().replaceBy(Collections.singleton(new ArtifactArchiver("f", "", true, false)));
+        for ( int i=0; i<5; i++ ) {
+            assertEquals(Result.SUCCESS, build(project)); // #1 to #5
+        }
+
+        RotationConfiguration.get().setBulkDeleteBatchSize(2);
+        RotationConfiguration.get().setBulkDeleteConcurrency(2);
+        FileArtifactBulkDeleter.enabled = true;
+        try {
+            long requests = FileArtifactBulkDeleter.getRequests();
+            project.setBuildDiscarder(new LogRotator(-1, -1, -1, 1));
+            project.logRotate();
+            assertEquals(2, FileArtifactBulkDeleter.getRequests() - requests);
+        } finally {
+            FileArtifactBulkDeleter.enabled = false;
+        }
+        for ( int n=1; n<=4; n++ ) {
+            assertFalse(project.getBuildByNumber(n).getHasArtifacts());
+        }
+        assertTrue(project.getBuildByNumber(5).getHasArtifacts());
+        assertEquals(4, RotationStats.of(project).getRunsPurged());
+        assertEquals(2, RotationStats.of(project).getBulkDeleteRequests());
+        assertTrue(RotationJournal.of(project).isEmpty());
+    }
+
+    public void testJournal() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, -1, -1, -1));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2
+
+        // as if the controller stopped right after writing the journal
+        RotationJournal journal = RotationJournal.of(project);
+        List<Run<?,?>> none = Collections.emptyList();
+        journal.intend(Collections.<Run<?,?>>singletonList(project.getBuildByNumber(1)), none, none, none);
+        File file = new File(project.getRootDir(), RotationJournal.FILE_NAME);
+        assertTrue(file.isFile());
+
+        project.logRotate();
+        assertNull(project.getBuildByNumber(1));
+        assertNotNull(project.getBuildByNumber(2));
+        assertTrue(journal.isEmpty());
+        assertFalse(file.exists());
+    }
+
+    public void testJournalCompaction() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        project.setBuildDiscarder(new LogRotator(-1, -1, -1, -1));
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        assertEquals(Result.SUCCESS, build(project)); // #2
+
+        // one step keeps failing while others come and go
+        RotationJournal journal = RotationJournal.of(project);
+        List<Run<?,?>> none = Collections.emptyList();
+        journal.intend(none, none, Collections.<Run<?,?>>singletonList(project.getBuildByNumber(2)), none);
+        for ( int i=0; i<1000; i++ ) {
+            journal.intend(Collections.<Run<?,?>>singletonList(project.getBuildByNumber(1)), none, none, none);
+            journal.done(1, DeletionQueue.Action.DELETE);
+        }
+        File file = new File(project.getRootDir(), RotationJournal.FILE_NAME);
+        assertTrue(file.length() < 4096);
+        assertFalse(journal.isEmpty());
+        journal.done(2, DeletionQueue.Action.COMPRESS_LOG);
+        assertFalse(file.exists());
+    }
+
+    public void testCorruptJournal() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        File file = new File(project.getRootDir(), RotationJournal.FILE_NAME);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            out.writeInt(0x554b4a31);
+            out.writeByte(1);
+            out.writeByte(99);
+            out.writeInt(1);
+            out.writeUTF("1");
+        } finally {
+            out.close();
+        }
+        // started over rather than failed
+        assertTrue(RotationJournal.of(project).isEmpty());
+    }
+
+    public void testTrash() throws Exception {
+        FreeStyleProject project = createFreeStyleProject();
+        LogRotator lr = new LogRotator(-1, 1, -1, -1);
+        lr.setUseTrash(true);
+        project.setBuildDiscarder(lr);
+        assertEquals(Result.SUCCESS, build(project)); // #1
+        File dir = project.getBuildByNumber(1).getRootDir();
+        assertEquals(Result.SUCCESS, build(project)); // #2
+        assertNull(project.getBuildByNumber(1));
+        assertFalse(dir.exists());
+        for ( int i=0; i<100 && !Trash.isEmpty(); i++ ) {
+            Thread.sleep(100);
+        }
+        assertTrue(Trash.isEmpty());
+        assertNotNull(project.getBuildByNumber(2));
+    }
+
 
     static Result build(FreeStyleProject project) throws Exception {
         return project.scheduleBuild2(0).get().getResult();
@@ -245,6 +847,35 @@ public class LogRotatorTest extends HudsonTestCase {
         }
     }
 
+    static class CreateLargeArtifact extends TestBuilder {
+        private final int size;
+
+        CreateLargeArtifact(int size) {
+            this.size = size;
+        }
+
+        public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+            OutputStream out = build.getWorkspace().child("f").write();
+            try {
+                out.write(new byte[size]);
+            } finally {
+                out.close();
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Writes the same file as {@link CreateArtifact}, but as produced by this build whatever the file time resolution.
+     */
+    static class ProduceArtifact extends TestBuilder {
+        public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
+            build.getWorkspace().child("f").write("content", "UTF-8");
+            build.getWorkspace().child("f").touch(System.currentTimeMillis() + 60 * 60 * 1000);
+            return true;
+        }
+    }
+
 	static class CreateArtifact extends TestBuilder {
         public boolean perform(AbstractBuild<?,?> build, Launcher launcher, BuildListener listener) throws IOException, InterruptedException {
             build.getWorkspace().child("f").write("content", "UTF-8");